@@ -0,0 +1,81 @@
+package semrau.brian.gaslawsdemo.bench;
+
+import com.badlogic.gdx.math.MathUtils;
+import org.openjdk.jmh.annotations.*;
+import semrau.brian.gaslawsdemo.sim.Box2DEngine;
+import semrau.brian.gaslawsdemo.sim.EngineType;
+import semrau.brian.gaslawsdemo.sim.GasSimulation;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The out-of-box scan and respawn of {@link Box2DEngine}, the only engine particles can escape from.
+ * <p>
+ * {@code scan} is the per-step cost when nothing has escaped. {@code respawn} first spreads the particles over a box
+ * four times as wide and then shrinks the walls back, the same as dragging the volume slider down, so most of them
+ * have to be respawned.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EscapeBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Box {
+
+        @Param({"200", "2000", "20000"})
+        public int particles;
+
+        @Param({"22.414", "100"})
+        public float volume;
+
+        @Param({"273.15", "2000"})
+        public float temperature;
+
+        GasSimulation sim;
+        Box2DEngine engine;
+
+        @Setup(Level.Trial)
+        public void createSimulation() {
+            MathUtils.random.setSeed(0);
+            sim = new GasSimulation(EngineType.BOX2D, particles);
+            engine = (Box2DEngine) sim.getEngine();
+            // Jump the walls straight to every new volume, or nothing would ever be left outside them
+            sim.setPiston(false);
+            sim.setVolume(volume);
+            sim.setTemperature(temperature);
+            sim.setMoles(1);
+        }
+
+        @TearDown(Level.Trial)
+        public void disposeSimulation() {
+            sim.dispose();
+        }
+
+    }
+
+    public static class Scattered extends Box {
+
+        @Setup(Level.Invocation)
+        public void scatter() {
+            sim.setMoles(0);
+            sim.setVolume(volume * 16);
+            sim.setMoles(1);
+            sim.setVolume(volume);
+        }
+
+    }
+
+    @Benchmark
+    public void scan(Box box) {
+        box.engine.respawnEscaped();
+    }
+
+    @Benchmark
+    public void respawn(Scattered box) {
+        box.engine.respawnEscaped();
+    }
+
+}
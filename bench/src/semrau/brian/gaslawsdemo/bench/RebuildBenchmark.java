@@ -0,0 +1,42 @@
+package semrau.brian.gaslawsdemo.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * The rebuilds {@code fixValues} triggers while a slider is dragged: walls on every volume change, particles on every
+ * change in moles. Each call flips between the set value and half of it. {@code createWalls} jumps the walls
+ * straight to the new size, {@code piston} glides them there over the following step.
+ */
+public class RebuildBenchmark extends SimulationBenchmark {
+
+    private boolean toggle;
+
+    @Setup(Level.Iteration)
+    public void pistonOff() {
+        sim.setPiston(false);
+    }
+
+    @Benchmark
+    public void createWalls() {
+        toggle = !toggle;
+        sim.setVolume(toggle ? volume / 2 : volume);
+    }
+
+    @Benchmark
+    public void piston() {
+        sim.setPiston(true);
+        toggle = !toggle;
+        sim.setVolume(toggle ? volume / 2 : volume);
+        sim.step(STEP_TIME);
+        sim.setPiston(false);
+    }
+
+    @Benchmark
+    public void createParticles() {
+        toggle = !toggle;
+        sim.setMoles(toggle ? 0.5f : 1);
+    }
+
+}
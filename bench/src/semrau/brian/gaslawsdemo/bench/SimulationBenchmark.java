@@ -0,0 +1,58 @@
+package semrau.brian.gaslawsdemo.bench;
+
+import com.badlogic.gdx.math.MathUtils;
+import org.openjdk.jmh.annotations.*;
+import semrau.brian.gaslawsdemo.desktop.DesktopLauncher;
+import semrau.brian.gaslawsdemo.sim.GasSimulation;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Common setup for the benchmarks: a headless {@link GasSimulation} holding {@code particles} particles as one mol
+ * at the given volume (L) and temperature (K).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class SimulationBenchmark {
+
+    public static final float STEP_TIME = 1.0f / 60.0f;
+
+    @Param({"box2d", "event_driven", "cell_list", "parallel_cell_list", "lennard_jones"})
+    public String engine;
+
+    @Param({"200", "2000", "20000"})
+    public int particles;
+
+    @Param({"22.414", "100"})
+    public float volume;
+
+    @Param({"273.15", "2000"})
+    public float temperature;
+
+    protected GasSimulation sim;
+
+    @Setup(Level.Trial)
+    public void createSimulation() {
+        MathUtils.random.setSeed(0);
+        sim = new GasSimulation(DesktopLauncher.engineFactory(engine, Runtime.getRuntime().availableProcessors()),
+                particles);
+        sim.setVolume(volume);
+        sim.setTemperature(temperature);
+        sim.setMoles(1);
+
+        // Let the starting positions and speeds settle a little
+        for (int i = 0; i < 60; i++) {
+            sim.step(STEP_TIME);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void disposeSimulation() {
+        sim.dispose();
+    }
+
+}
@@ -0,0 +1,20 @@
+package semrau.brian.gaslawsdemo.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * One full simulation step, thermostat included, as {@code GasLawsDemo.update} runs it.
+ */
+public class StepBenchmark extends SimulationBenchmark {
+
+    @Benchmark
+    public void step() {
+        sim.step(STEP_TIME);
+    }
+
+    @Benchmark
+    public void engineStep() {
+        sim.getEngine().step(STEP_TIME);
+    }
+
+}
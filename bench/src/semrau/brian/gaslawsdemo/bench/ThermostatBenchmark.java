@@ -0,0 +1,27 @@
+package semrau.brian.gaslawsdemo.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * The velocity-rescale thermostat on its own.
+ */
+public class ThermostatBenchmark extends SimulationBenchmark {
+
+    @Benchmark
+    public void thermostat() {
+        sim.thermostat();
+    }
+
+    @Benchmark
+    public float meanSpeed2() {
+        return sim.getEngine().meanSpeed2();
+    }
+
+    @Benchmark
+    public void heatAndRescale() {
+        // Knock the temperature off so the rescale pass actually has work to do
+        sim.getEngine().scaleVelocities(1.01f);
+        sim.thermostat();
+    }
+
+}
@@ -9,9 +9,19 @@ import com.badlogic.gdx.scenes.scene2d.*;
 import com.badlogic.gdx.scenes.scene2d.ui.*;
 import com.badlogic.gdx.scenes.scene2d.utils.*;
 import com.badlogic.gdx.utils.Align;
+import com.badlogic.gdx.utils.TimeUtils;
 import com.badlogic.gdx.utils.viewport.ScreenViewport;
-
-import java.util.ArrayList;
+import semrau.brian.gaslawsdemo.sim.EngineType;
+import semrau.brian.gaslawsdemo.sim.Ensemble;
+import semrau.brian.gaslawsdemo.sim.GasSimulation;
+import semrau.brian.gaslawsdemo.sim.ParticleEngine;
+import semrau.brian.gaslawsdemo.sim.ParticleGovernor;
+import semrau.brian.gaslawsdemo.sim.Profiler;
+import semrau.brian.gaslawsdemo.sim.SimulationLoop;
+import semrau.brian.gaslawsdemo.sim.Snapshot;
+import semrau.brian.gaslawsdemo.sim.SnapshotBuffer;
+import semrau.brian.gaslawsdemo.sim.SpeedHistogram;
+import semrau.brian.gaslawsdemo.sim.StateCache;
 
 public class GasLawsDemo extends ApplicationAdapter {
 
@@ -31,6 +41,18 @@ public class GasLawsDemo extends ApplicationAdapter {
     private TextField tField;
     private Slider pSlider; // atm
     private TextField pField;
+    private Label pressureLabel;
+    private Label diffusionLabel;
+
+    private Table playbackTable;
+    private Slider scrubSlider;
+    private boolean scrubbing;
+
+    private TextButton timingsButton;
+    private TextButton speedsButton;
+    private Table timingTable;
+    private Label[] p50Labels;
+    private Label[] p99Labels;
 
     private boolean fixingValues;
 
@@ -47,23 +69,48 @@ public class GasLawsDemo extends ApplicationAdapter {
     private Box2DDebugRenderer b2renderer;
 
     private ShapeRenderer shapeRenderer;
+    private ParticleRenderer particleRenderer;
+    private HeatmapRenderer heatmapRenderer;
+    private int heatmapThreshold = 100000;
 
     // Particle Simulation
 
-    private World b2world;
-    private float timeToStep;
+    private final ParticleEngine.Factory engineFactory;
+    private final int particlesPerMole;
+    private GasSimulation sim;
+    private SimulationLoop loop;
+    private SimulationLoop.Runner runner;
+    private SimulationLoop.Recorder recorder;
+    private Ensemble ensemble;
+    // Showing a remote simulation: the state it last reported, and time since the controls last asked to change it
+    private float remoteV, remoteT, remoteN;
+    private float sinceRequest = 1;
+    private boolean syncingRemote;
+    private boolean remoteSynced; // the controls show the remote state, so changing them may change it
     private final float stepTime = 1.0f / 60.0f;
-    private Body walls;
-    private ArrayList<Body> particles;
-    private ArrayList<Body> toRemove;
-    private final float particleRadius = 3.0f / 16.0f;
-    private final float wallThickness = 5;
+    private float timeToReadout;
+    private final float readoutTime = 0.25f;
+    private float timeToTimings;
+    private final float timingsTime = 1;
 
-    private final int MOLE = 20;
-    private final float R = 0.082057f; // L atm mol-1 K-1
+    private final Profiler profiler = new Profiler();
+    private final StateCache stateCache = new StateCache(64 << 20);
+    private ParticleGovernor governor;
+    private final float frameBudget = 1.0f / 60.0f;
+
+    private final float R = GasSimulation.R;
 
     private float v, p, n, t;
 
+    public GasLawsDemo() {
+        this(EngineType.BOX2D, 20);
+    }
+
+    public GasLawsDemo(ParticleEngine.Factory engineFactory, int particlesPerMole) {
+        this.engineFactory = engineFactory;
+        this.particlesPerMole = particlesPerMole;
+    }
+
     @Override
     public void create() {
         createGUI();
@@ -89,6 +136,11 @@ public class GasLawsDemo extends ApplicationAdapter {
         specialControlsTable.setFillParent(true);
         specialControlsTable.align(Align.right | Align.top);
 
+        playbackTable = new Table(skin);
+        playbackTable.pad(10);
+        playbackTable.setFillParent(true);
+        playbackTable.align(Align.center | Align.bottom);
+
         // Create components
 
         // ######################
@@ -281,6 +333,34 @@ public class GasLawsDemo extends ApplicationAdapter {
         });
         lockGroup = new ButtonGroup<>(pvLock, ptLock, vtLock);
 
+        speedsButton = new TextButton("Speeds", skin, "toggle");
+        speedsButton.setChecked(true);
+
+        timingsButton = new TextButton("Timings", skin, "toggle");
+        timingsButton.addListener(new ChangeListener() {
+            @Override
+            public void changed(ChangeEvent event, Actor actor) {
+                timingTable.setVisible(timingsButton.isChecked());
+            }
+        });
+
+        // p50 and p99 of every profiled phase over the last second, in microseconds
+        timingTable = new Table(skin);
+        timingTable.add(new Label("us", skin)).left();
+        timingTable.add(new Label("p50", skin)).right().padLeft(10);
+        timingTable.add(new Label("p99", skin)).right().padLeft(10);
+        p50Labels = new Label[Profiler.PHASE_NAMES.length];
+        p99Labels = new Label[Profiler.PHASE_NAMES.length];
+        for (int i = 0; i < Profiler.PHASE_NAMES.length; i++) {
+            timingTable.row();
+            timingTable.add(new Label(Profiler.PHASE_NAMES[i], skin)).left();
+            p50Labels[i] = new Label("", skin);
+            p99Labels[i] = new Label("", skin);
+            timingTable.add(p50Labels[i]).right().padLeft(10);
+            timingTable.add(p99Labels[i]).right().padLeft(10);
+        }
+        timingTable.setVisible(false);
+
         ptLock.setChecked(true);
         vSlider.setVisible(false);
 
@@ -316,6 +396,13 @@ public class GasLawsDemo extends ApplicationAdapter {
         equationTable.add(new Label("mol", skin));
         equationTable.add(new Label("", skin));
         equationTable.add(new Label("K", skin));
+        equationTable.row();
+
+        pressureLabel = new Label("", skin);
+        equationTable.add(pressureLabel).colspan(6).padTop(10);
+        equationTable.row();
+        diffusionLabel = new Label("", skin);
+        equationTable.add(diffusionLabel).colspan(6);
 
         stage.addActor(equationTable);
 
@@ -327,8 +414,29 @@ public class GasLawsDemo extends ApplicationAdapter {
         specialControlsTable.add(ptLock).padTop(10);
         specialControlsTable.row();
         specialControlsTable.add(vtLock).padTop(10);
+        specialControlsTable.row();
+        specialControlsTable.add(speedsButton).padTop(10);
+        specialControlsTable.row();
+        specialControlsTable.add(timingsButton).padTop(10);
+        specialControlsTable.row();
+        specialControlsTable.add(timingTable).padTop(10).right();
 
         stage.addActor(specialControlsTable);
+
+        // Build playback table
+        if (runner instanceof SimulationLoop.Playback) {
+            final SimulationLoop.Playback playback = (SimulationLoop.Playback) runner;
+            scrubSlider = new Slider(0, Math.max(playback.getStepCount() - 1, 1), 1, false, skin);
+            scrubSlider.addListener(new ChangeListener() {
+                @Override
+                public void changed(ChangeEvent event, Actor actor) {
+                    if (scrubbing) return;
+                    playback.seek((int) scrubSlider.getValue());
+                }
+            });
+            playbackTable.add(scrubSlider).width(400);
+            stage.addActor(playbackTable);
+        }
     }
 
     private void initRendering() {
@@ -339,86 +447,25 @@ public class GasLawsDemo extends ApplicationAdapter {
 //        b2renderer.SHAPE_STATIC.set(Color.WHITE);
 
         shapeRenderer = new ShapeRenderer();
+        particleRenderer = new ParticleRenderer();
+        heatmapRenderer = new HeatmapRenderer();
     }
 
     private void createSim() {
-        b2world = new World(new Vector2(), false);
-        World.setVelocityThreshold(1);
-
-        particles = new ArrayList<Body>();
-        toRemove = new ArrayList<Body>();
-
-        createWalls();
+        sim = new GasSimulation(engineFactory, particlesPerMole);
+        sim.setProfiler(profiler);
+        sim.setStateCache(stateCache);
+        sim.setVolume(v);
+        sim.setTemperature(t);
 
         setMoles(molSlider.getValue());
-    }
-
-    private void createWalls() {
-        if (walls != null)
-            b2world.destroyBody(walls);
-
-        BodyDef bodyDef = new BodyDef();
-        bodyDef.type = BodyDef.BodyType.StaticBody;
-        walls = b2world.createBody(bodyDef);
-
-        float thick = wallThickness / 2;
-        float size = wallSize() / 2;
-
-        FixtureDef wall = new FixtureDef();
-        PolygonShape shape = new PolygonShape();
-        shape.setAsBox(size + wallThickness, thick, new Vector2(0, -size - thick), 0);
-        wall.shape = shape;
-        wall.friction = 0;
-        wall.restitution = 1;
-        walls.createFixture(wall);
-
-        shape.setAsBox(size + wallThickness, thick, new Vector2(0, size + thick), 0);
-        walls.createFixture(wall);
-
-        shape.setAsBox(thick, size + wallThickness, new Vector2(size + thick, 0), 0);
-        walls.createFixture(wall);
-
-        shape.setAsBox(thick, size + wallThickness, new Vector2(-size - thick, 0), 0);
-        walls.createFixture(wall);
-    }
-
-    private void createParticles(int count) {
-        while (count < particles.size()) {
-            b2world.destroyBody(particles.get(0));
-            particles.remove(0);
-        }
-
-        BodyDef bodyDef = new BodyDef();
-        bodyDef.type = BodyDef.BodyType.DynamicBody;
-
-        FixtureDef fixtureDef = new FixtureDef();
-        fixtureDef.restitution = 1;
-        fixtureDef.friction = 0;
-        fixtureDef.density = 1;
-        fixtureDef.shape = new CircleShape();
-        fixtureDef.shape.setRadius(particleRadius);
-
-        float size = wallSize() / 2;
-        float thick = wallThickness / 2;
-
-        float vel = (float) Math.sqrt(t * 2); // KE = 1/2 m v^2
-
-        for (int i = particles.size(); i < count; i++) {
-            float x = MathUtils.random(-size + thick, size - thick);
-            float y = MathUtils.random(-size + thick, size - thick);
-            bodyDef.position.set(x, y);
-            bodyDef.linearVelocity.set(MathUtils.random() * 2 - 1, MathUtils.random() * 2 - 1);
-            bodyDef.linearVelocity.setLength(vel);
-
-            Body particle = b2world.createBody(bodyDef);
-            particle.createFixture(fixtureDef);
-
-            particles.add(particle);
-        }
-    }
 
-    private float wallSize() {
-        return ((float) Math.sqrt(v)) * 5;
+        loop = new SimulationLoop(sim, stepTime);
+        // Up to well past the typical speed at the hottest setting
+        loop.getSpeeds().setRange(2.5f * (float) Math.sqrt(tSlider.getMaxValue()));
+        loop.setRecorder(recorder);
+        if (runner != null)
+            runner.start(loop);
     }
 
     private void setPressure(float p) {
@@ -481,14 +528,16 @@ public class GasLawsDemo extends ApplicationAdapter {
             vSlider.setValue(v);
             vField.setText(ezFormat(v));
             vField.setColor(Color.WHITE);
-            if (b2world != null)
-                createWalls();
+            if (sim != null)
+                sim.getPending().setVolume(v);
         }
         if (t != -1) {
             this.t = t;
             tSlider.setValue(t);
             tField.setText(ezFormat(t));
             tField.setColor(Color.WHITE);
+            if (sim != null)
+                sim.getPending().setTemperature(t);
 
 //            if (particles != null) {
 //                float vel = (float) Math.sqrt(getTemp() * 2); // KE = 1/2 m v^2
@@ -508,50 +557,101 @@ public class GasLawsDemo extends ApplicationAdapter {
             molSlider.setValue(n);
             molField.setText(ezFormat(n));
             molField.setColor(Color.WHITE);
-            if (b2world != null)
-                createParticles((int) (this.n * MOLE));
+            if (sim != null)
+                sim.getPending().setMoles(n);
         }
         fixingValues = false;
+
+        // Setting up the controls before the first frame arrived must not reset a simulation others are watching
+        if (runner instanceof SimulationLoop.Remote && remoteSynced && !syncingRemote) {
+            ((SimulationLoop.Remote) runner).request(this.v, this.t, this.n);
+            sinceRequest = 0;
+        }
+    }
+
+    /**
+     * Moves the controls along when the remote simulation changes, unless they are the ones changing it.
+     */
+    private void syncRemote(float delta) {
+        sinceRequest += delta;
+        Snapshot current = loop.getSnapshots().getCurrent();
+        if (current.volume <= 0) return; // nothing received yet
+        if (current.volume == remoteV && current.temperature == remoteT && current.moles == remoteN) return;
+        remoteV = current.volume;
+        remoteT = current.temperature;
+        remoteN = current.moles;
+        // Right after a request the frames still show the state before it
+        if (sinceRequest < 0.5f) return;
+        syncingRemote = true;
+        fixValues(remoteV, remoteT, current.idealPressure, remoteN);
+        syncingRemote = false;
+        remoteSynced = true;
     }
 
     private void update(float delta) {
+        // Step here unless a runner does it on another thread
+        if (runner == null)
+            loop.advance(delta);
+        loop.getSnapshots().acquire();
+        if (ensemble != null)
+            ensemble.merge(loop.getSnapshots().getCurrent(), sim.getParticlesPerMole());
+        if (runner instanceof SimulationLoop.Remote)
+            syncRemote(delta);
+
+        if (scrubSlider != null && !scrubSlider.isDragging()) {
+            scrubbing = true;
+            scrubSlider.setValue(((SimulationLoop.Playback) runner).getStep());
+            scrubbing = false;
+        }
 
-        timeToStep += delta;
+        timeToReadout += delta;
+        if (timeToReadout >= readoutTime) {
+            timeToReadout = 0;
+            Snapshot current = loop.getSnapshots().getCurrent();
+            if (ensemble != null) {
+                // The error is the spread between boxes, which needs a second box measured at this state
+                int replicas = ensemble.getReplicas();
+                pressureLabel.setText("measured P: " + ezFormat(ensemble.getPressureMean())
+                        + (replicas > 1 ? " +- " + ezFormat(ensemble.getPressureError()) : "")
+                        + " atm over " + replicas + (replicas > 1 ? " boxes" : " box")
+                        + " (ideal " + ezFormat(current.idealPressure)
+                        + ", Z = " + ezFormat(ensemble.getPressureMean() / current.idealPressure) + ")");
+            } else {
+                pressureLabel.setText("measured P: " + ezFormat(current.pressureMean)
+                        + " +- " + ezFormat(current.pressureDeviation)
+                        + " atm (ideal " + ezFormat(current.idealPressure)
+                        + ", Z = " + ezFormat(current.pressureMean / current.idealPressure) + ")");
+            }
+            // Recordings and servers don't send it, and it takes a few steps at a state to measure
+            diffusionLabel.setText(current.diffusion == 0 ? "" : "diffusion D: " + ezFormat(current.diffusion)
+                    + " units^2/s at " + ezFormat(current.temperature) + " K, " + ezFormat(current.moles) + " mol");
+        }
 
-        if (timeToStep >= stepTime) {
-            // Destroy and recreate all particles found outside the box
-            float size = wallSize() / 2 + wallThickness;
-            for (Body b : particles) {
-                if (b.getPosition().x < -size || b.getPosition().x > size || b.getPosition().y < -size || b.getPosition().y > size) {
-                    b2world.destroyBody(b);
-                    toRemove.add(b);
+        timeToTimings += delta;
+        if (timeToTimings >= timingsTime) {
+            timeToTimings = 0;
+            if (timingTable.isVisible()) {
+                for (int i = 0; i < Profiler.PHASE_NAMES.length; i++) {
+                    p50Labels[i].setText("" + profiler.percentile(i, 0.5f));
+                    p99Labels[i].setText("" + profiler.percentile(i, 0.99f));
                 }
             }
-            int count = particles.size();
-            particles.removeAll(toRemove);
-            toRemove.clear();
-            createParticles(count);
-
-            // Make sure average temperature stays where it's set
-            float vel2 = 0;
-            for (Body b : particles) {
-                vel2 += b.getLinearVelocity().len2();
-            }
-            vel2 /= particles.size();
-            if (t == 0) t = 0.00001f;
-            float scale = (float) Math.sqrt(t / vel2);
-            for (Body b : particles) {
-                b.setLinearVelocity(b.getLinearVelocity().scl(scale));
+            if (governor != null && profiler.getSamples(Profiler.STEP) > 0) {
+                int particlesPerMole = sim.getParticlesPerMole();
+                int adjusted = governor.adjust(particlesPerMole,
+                        profiler.percentile(Profiler.STEP, 0.5f) / 1000000.0f, stepTime,
+                        profiler.percentile(Profiler.FRAME, 0.5f) / 1000000.0f, frameBudget);
+                if (adjusted != particlesPerMole)
+                    sim.getPending().setParticlesPerMole(adjusted);
             }
-
-            // Step
-            b2world.step(stepTime, 3, 6);
+            profiler.clear();
         }
     }
 
     @Override
     public void render() {
         float delta = Gdx.graphics.getDeltaTime();
+        profiler.begin(Profiler.FRAME);
 
         update(delta);
 
@@ -560,21 +660,26 @@ public class GasLawsDemo extends ApplicationAdapter {
 
         camera.update();
 
-        // Draw simulation
-        shapeRenderer.setProjectionMatrix(camera.combined);
-        shapeRenderer.begin(ShapeRenderer.ShapeType.Filled);
+        // Draw simulation one step behind, in between the last two steps
+        SnapshotBuffer snapshots = loop.getSnapshots();
+        Snapshot previous = snapshots.getPrevious();
+        Snapshot current = snapshots.getCurrent();
+        float alpha = snapshots.alpha(TimeUtils.nanoTime() - (long) (stepTime * 1000000000L));
         // Particles
-        for (Body p : particles) {
-            float a = p.getLinearVelocity().len2() / tSlider.getMaxValue();
-            shapeRenderer.setColor(
-                    a,
-                    0.5f,
-                    1 - a,
-                    1);
-            shapeRenderer.circle(p.getPosition().x, p.getPosition().y, particleRadius + 0.1f, 7);
+        float pixelsPerUnit = Gdx.graphics.getWidth() / (camera.viewportWidth * camera.zoom);
+        profiler.begin(Profiler.PARTICLES);
+        float wallSize = previous.wallSize + (current.wallSize - previous.wallSize) * alpha;
+        if (current.count > heatmapThreshold) {
+            heatmapRenderer.render(camera.combined, current, wallSize, tSlider.getMaxValue());
+        } else {
+            particleRenderer.render(camera.combined, previous, current, alpha,
+                    (sim.getParticleRadius() + 0.1f) * 2 * pixelsPerUnit, tSlider.getMaxValue());
         }
+        profiler.end(Profiler.PARTICLES);
         // Walls
-        float size = wallSize() / 2;
+        shapeRenderer.setProjectionMatrix(camera.combined);
+        shapeRenderer.begin(ShapeRenderer.ShapeType.Filled);
+        float size = wallSize / 2;
         float thick = 0.5f;
         shapeRenderer.setColor(Color.WHITE);
         shapeRenderer.rect(-size - thick, -size - thick, size * 2 + thick * 2, thick);
@@ -583,9 +688,55 @@ public class GasLawsDemo extends ApplicationAdapter {
         shapeRenderer.rect(size, -size - thick, thick, size * 2 + thick * 2);
         shapeRenderer.end();
 
-//        b2renderer.render(b2world, camera.combined);
+        if (speedsButton.isChecked())
+            drawSpeeds(current);
 
+//        if (sim.getEngine() instanceof Box2DEngine)
+//            b2renderer.render(((Box2DEngine) sim.getEngine()).getWorld(), camera.combined);
+
+        profiler.begin(Profiler.UI);
         stage.draw();
+        profiler.end(Profiler.UI);
+
+        profiler.end(Profiler.FRAME);
+        profiler.endFrame();
+    }
+
+    /**
+     * Speed histogram in the bottom left corner, with the Maxwell-Boltzmann distribution for the set temperature
+     * drawn over it.
+     */
+    private void drawSpeeds(Snapshot snapshot) {
+        SpeedHistogram speeds = loop.getSpeeds();
+        float left = 10, bottom = 10, width = 256, height = 120;
+        float bar = width / SpeedHistogram.BINS;
+
+        float peak = 0;
+        for (int i = 0; i < SpeedHistogram.BINS; i++) {
+            peak = Math.max(peak, Math.max(snapshot.speeds[i], speeds.expected(i, snapshot.temperature)));
+        }
+        if (peak == 0) return;
+
+        shapeRenderer.setProjectionMatrix(stage.getCamera().combined);
+        shapeRenderer.begin(ShapeRenderer.ShapeType.Filled);
+        for (int i = 0; i < SpeedHistogram.BINS; i++) {
+            float speed = (i + 0.5f) * speeds.getRange() / SpeedHistogram.BINS;
+            float a = Math.min(speed * speed / tSlider.getMaxValue(), 1);
+            shapeRenderer.setColor(a, 0.5f, 1 - a, 1);
+            shapeRenderer.rect(left + i * bar, bottom, bar, snapshot.speeds[i] / peak * height);
+        }
+        shapeRenderer.end();
+
+        shapeRenderer.begin(ShapeRenderer.ShapeType.Line);
+        shapeRenderer.setColor(Color.WHITE);
+        shapeRenderer.line(left, bottom, left + width, bottom);
+        float lastY = bottom;
+        for (int i = 0; i < SpeedHistogram.BINS; i++) {
+            float y = bottom + speeds.expected(i, snapshot.temperature) / peak * height;
+            shapeRenderer.line(left + i * bar, lastY, left + (i + 0.5f) * bar, y);
+            lastY = y;
+        }
+        shapeRenderer.end();
     }
 
     @Override
@@ -593,4 +744,77 @@ public class GasLawsDemo extends ApplicationAdapter {
         stage.getViewport().update(width, height, true);
     }
 
+    @Override
+    public void dispose() {
+        stage.dispose();
+        skin.dispose();
+        shapeRenderer.dispose();
+        particleRenderer.dispose();
+        heatmapRenderer.dispose();
+        if (runner != null)
+            runner.stop();
+        if (recorder != null)
+            recorder.dispose();
+        if (ensemble != null)
+            ensemble.dispose();
+        sim.dispose();
+        profiler.dispose();
+    }
+
+    /**
+     * Lets the runner step the simulation from now on instead of the render thread. Has to be set before the app
+     * starts.
+     */
+    public void setRunner(SimulationLoop.Runner runner) {
+        this.runner = runner;
+    }
+
+    /**
+     * @return the cache of equilibrated states, for filling it in the background
+     */
+    public StateCache getStateCache() {
+        return stateCache;
+    }
+
+    public float getStepTime() {
+        return stepTime;
+    }
+
+    /**
+     * Hands every step to the recorder from now on. Has to be set before the app starts.
+     */
+    public void setRecorder(SimulationLoop.Recorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Averages the pressure readout over the given replicas as well as the displayed simulation.
+     */
+    public void setEnsemble(Ensemble ensemble) {
+        this.ensemble = ensemble;
+    }
+
+    /**
+     * Sets a governor that scales particles per mol to the machine. Off by default, because every change of the
+     * particle count restarts the diffusion measurement and the replicas' pressure averages, and skips a frame of
+     * interpolation. Null keeps the count fixed.
+     */
+    public void setGovernor(ParticleGovernor governor) {
+        this.governor = governor;
+    }
+
+    /**
+     * Above this many particles the gas is drawn as a density and speed heatmap instead of single particles.
+     */
+    public void setHeatmapThreshold(int particles) {
+        heatmapThreshold = particles;
+    }
+
+    /**
+     * @return the profiler timing every frame, for attaching a {@link Profiler.Listener} before the app starts
+     */
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
 }
@@ -0,0 +1,89 @@
+package semrau.brian.gaslawsdemo;
+
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.utils.Disposable;
+import semrau.brian.gaslawsdemo.sim.Snapshot;
+
+/**
+ * Draws the gas as a grid of cells instead of single particles, for counts where the particles are smaller than a
+ * pixel anyway.
+ * <p>
+ * Every frame the particles are binned into the grid in one pass. Each cell gets brighter with the number of
+ * particles in it and takes the same blue to red colour as the particles for their mean square speed. The grid is
+ * uploaded into a small texture and drawn as one quad filling the box, so the cost of drawing no longer grows with
+ * the particle count. Nothing is allocated after construction.
+ */
+public class HeatmapRenderer implements Disposable {
+
+    private static final int GRID = 64;
+
+    private final int[] counts = new int[GRID * GRID];
+    private final float[] speed2 = new float[GRID * GRID];
+    private final Pixmap pixmap;
+    private final Texture texture;
+    private final SpriteBatch batch;
+
+    public HeatmapRenderer() {
+        pixmap = new Pixmap(GRID, GRID, Pixmap.Format.RGBA8888);
+        texture = new Texture(pixmap);
+        texture.setFilter(Texture.TextureFilter.Linear, Texture.TextureFilter.Linear);
+        batch = new SpriteBatch(1);
+    }
+
+    /**
+     * @param maxSpeed2 square speed drawn fully red
+     */
+    public void render(Matrix4 projection, Snapshot snapshot, float wallSize, float maxSpeed2) {
+        int count = snapshot.count;
+        if (count == 0 || wallSize <= 0) return;
+
+        for (int c = 0; c < counts.length; c++) {
+            counts[c] = 0;
+            speed2[c] = 0;
+        }
+
+        float half = wallSize / 2;
+        float scale = GRID / wallSize;
+        for (int i = 0; i < count; i++) {
+            int cx = Math.min(Math.max((int) ((snapshot.x[i] + half) * scale), 0), GRID - 1);
+            int cy = Math.min(Math.max((int) ((snapshot.y[i] + half) * scale), 0), GRID - 1);
+            int c = cy * GRID + cx;
+            counts[c]++;
+            speed2[c] += snapshot.speed2[i];
+        }
+
+        // Twice the average density is full brightness
+        float full = 2.0f * count / counts.length;
+        for (int cy = 0; cy < GRID; cy++) {
+            for (int cx = 0; cx < GRID; cx++) {
+                int c = cy * GRID + cx;
+                int pixel = 0x000000ff; // opaque, drawPixel blends
+                if (counts[c] > 0) {
+                    float a = Math.min(speed2[c] / counts[c] / maxSpeed2, 1);
+                    float density = Math.min(counts[c] / full, 1);
+                    pixel = Color.rgba8888(a * density, 0.5f * density, (1 - a) * density, 1);
+                }
+                // Pixmap rows run top down
+                pixmap.drawPixel(cx, GRID - 1 - cy, pixel);
+            }
+        }
+        texture.draw(pixmap, 0, 0);
+
+        batch.setProjectionMatrix(projection);
+        batch.begin();
+        batch.draw(texture, -half, -half, wallSize, wallSize);
+        batch.end();
+    }
+
+    @Override
+    public void dispose() {
+        batch.dispose();
+        texture.dispose();
+        pixmap.dispose();
+    }
+
+}
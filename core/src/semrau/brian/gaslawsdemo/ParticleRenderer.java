@@ -0,0 +1,122 @@
+package semrau.brian.gaslawsdemo;
+
+import com.badlogic.gdx.Application;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import semrau.brian.gaslawsdemo.sim.Snapshot;
+
+/**
+ * Draws all particles with a single draw call.
+ * <p>
+ * Each particle is one point sprite made of its position and square speed. The vertex shader turns the speed into
+ * the same blue to red colour the ShapeRenderer circles used, and the fragment shader cuts the square point down to
+ * a circle. Positions are interpolated between the last two simulation steps, so motion stays smooth when frames and
+ * steps don't line up, unless the steps' generations tell that indices were reused in between. The vertex array and mesh are reused every frame and only grow when the particle count does.
+ */
+public class ParticleRenderer implements Disposable {
+
+    private static final int FLOATS_PER_PARTICLE = 3;
+
+    // GL_VERTEX_PROGRAM_POINT_SIZE and GL_POINT_SPRITE, always on in GLES/WebGL but not in desktop GL
+    private static final int GL_VERTEX_PROGRAM_POINT_SIZE = 0x8642;
+    private static final int GL_POINT_SPRITE = 0x8861;
+
+    private static final String VERTEX_SHADER = ""
+            + "attribute vec2 a_position;\n"
+            + "attribute float a_speed2;\n"
+            + "uniform mat4 u_projTrans;\n"
+            + "uniform float u_pointSize;\n"
+            + "uniform float u_maxSpeed2;\n"
+            + "varying vec4 v_color;\n"
+            + "void main() {\n"
+            + "    float a = a_speed2 / u_maxSpeed2;\n"
+            + "    v_color = vec4(a, 0.5, 1.0 - a, 1.0);\n"
+            + "    gl_PointSize = u_pointSize;\n"
+            + "    gl_Position = u_projTrans * vec4(a_position, 0.0, 1.0);\n"
+            + "}\n";
+
+    private static final String FRAGMENT_SHADER = ""
+            + "#ifdef GL_ES\n"
+            + "precision mediump float;\n"
+            + "#endif\n"
+            + "varying vec4 v_color;\n"
+            + "void main() {\n"
+            + "    vec2 d = gl_PointCoord - vec2(0.5);\n"
+            + "    if (dot(d, d) > 0.25) discard;\n"
+            + "    gl_FragColor = v_color;\n"
+            + "}\n";
+
+    private final ShaderProgram shader;
+    private Mesh mesh;
+    private float[] vertices = new float[0];
+
+    public ParticleRenderer() {
+        shader = new ShaderProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+        if (!shader.isCompiled())
+            throw new GdxRuntimeException("Particle shader failed to compile: " + shader.getLog());
+    }
+
+    /**
+     * @param alpha     how far to go from the previous towards the current step, between 0 and 1
+     * @param pointSize particle diameter in pixels
+     * @param maxSpeed2 square speed drawn fully red
+     */
+    public void render(Matrix4 projection, Snapshot previous, Snapshot current, float alpha,
+                       float pointSize, float maxSpeed2) {
+        int count = current.count;
+        if (count == 0) return;
+
+        ensureCapacity(count);
+        int k = 0;
+        // Particles that didn't exist a step ago, or may be different ones, are drawn where they are now
+        int both = previous.generation == current.generation ? Math.min(count, previous.count) : 0;
+        for (int i = 0; i < both; i++) {
+            vertices[k++] = previous.x[i] + (current.x[i] - previous.x[i]) * alpha;
+            vertices[k++] = previous.y[i] + (current.y[i] - previous.y[i]) * alpha;
+            vertices[k++] = previous.speed2[i] + (current.speed2[i] - previous.speed2[i]) * alpha;
+        }
+        for (int i = both; i < count; i++) {
+            vertices[k++] = current.x[i];
+            vertices[k++] = current.y[i];
+            vertices[k++] = current.speed2[i];
+        }
+        mesh.setVertices(vertices, 0, k);
+
+        if (Gdx.app.getType() == Application.ApplicationType.Desktop) {
+            Gdx.gl.glEnable(GL_VERTEX_PROGRAM_POINT_SIZE);
+            Gdx.gl.glEnable(GL_POINT_SPRITE);
+        }
+
+        shader.begin();
+        shader.setUniformMatrix("u_projTrans", projection);
+        shader.setUniformf("u_pointSize", pointSize);
+        shader.setUniformf("u_maxSpeed2", maxSpeed2);
+        mesh.render(shader, GL20.GL_POINTS, 0, count);
+        shader.end();
+    }
+
+    private void ensureCapacity(int count) {
+        if (mesh != null && mesh.getMaxVertices() >= count) return;
+
+        int capacity = Math.max(count, mesh == null ? 256 : mesh.getMaxVertices() * 2);
+        if (mesh != null) mesh.dispose();
+        mesh = new Mesh(false, capacity, 0,
+                new VertexAttribute(VertexAttributes.Usage.Position, 2, "a_position"),
+                new VertexAttribute(VertexAttributes.Usage.Generic, 1, "a_speed2"));
+        vertices = new float[capacity * FLOATS_PER_PARTICLE];
+    }
+
+    @Override
+    public void dispose() {
+        shader.dispose();
+        if (mesh != null) mesh.dispose();
+    }
+
+}
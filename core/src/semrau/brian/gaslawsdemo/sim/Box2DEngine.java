@@ -0,0 +1,402 @@
+package semrau.brian.gaslawsdemo.sim;
+
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Vector2;
+import com.badlogic.gdx.physics.box2d.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Reference engine: every particle is a Box2D dynamic body bouncing off four wall bodies.
+ * <p>
+ * The walls are created once, long enough for any box size, and only ever moved. A volume change drives them like
+ * pistons so they push the particles along instead of leaving them outside to be respawned.
+ * <p>
+ * The walls are dynamic bodies {@link #WALL_MASS} times as heavy as a particle rather than kinematic ones, so the
+ * impulse the particles give them shows up as a change in their velocity. Reading that off four bodies after each
+ * step measures the pressure exactly, where a contact listener would call back into Java for every contact in the
+ * world, particle against particle included. The walls are put back where they belong at the end of every step, so
+ * their own motion never drifts from the set volume.
+ * <p>
+ * Bodies are never destroyed once created. Removed particles are deactivated and parked in a pool for the next time
+ * the count grows, and escaped particles are simply moved back inside, so changing the amount of gas or running hot
+ * does not allocate.
+ * <p>
+ * Box2D only checks a fast particle against the walls at the end of each world step, so a step is split into as many
+ * world steps as it takes for neither the fastest particle nor a moving wall to cover more than a quarter of the wall
+ * thickness in one. At room temperature that is a single world step; only hot gas or a fast piston pays for more.
+ * This also keeps particles under Box2D's limit of 2 units per world step, above which it would slow them down.
+ * <p>
+ * Reading or writing a body crosses JNI on desktop, so particle state is gathered into plain arrays once after every
+ * world step and everything else reads those. Only the thermostat writes velocities back, all in one pass.
+ */
+public class Box2DEngine implements ParticleEngine {
+
+    private static final float WALL_REACH = 500; // half length of each wall, enough for any volume
+    private static final int MAX_SUBSTEPS = 16;
+    private static final float WALL_MASS = 10000; // in particle masses, so a bounce hardly slows the particle down
+
+    private World b2world;
+    private Body[] walls;
+    private ArrayList<Body> particles;
+    private ArrayList<Body> pool;
+    private final BodyDef bodyDef;
+    private final FixtureDef fixtureDef;
+    private final Seeder seeder = new Seeder();
+    private Random random = MathUtils.random;
+
+    // Particle state as of the last world step, index for index with particles
+    private float[] x = new float[0];
+    private float[] y = new float[0];
+    private float[] vx = new float[0];
+    private float[] vy = new float[0];
+    private final float particleRadius;
+    private final float wallThickness;
+
+    private float wallSize;
+    private float t;
+
+    // Where the walls end up after this step and how fast they were sent there, along their normals
+    private float wallOffset;
+    private final float[] wallVelocity = new float[4];
+
+    private final float particleMass;
+    private float wallImpulse;
+    private float wallSpeed;
+    private int substeps = 1;
+    private int escapes;
+
+    private Profiler profiler = new Profiler();
+
+    public Box2DEngine(float particleRadius, float wallThickness) {
+        this.particleRadius = particleRadius;
+        this.wallThickness = wallThickness;
+
+        b2world = new World(new Vector2(), false);
+        World.setVelocityThreshold(1);
+
+        particles = new ArrayList<Body>();
+        pool = new ArrayList<Body>();
+
+        bodyDef = new BodyDef();
+        bodyDef.type = BodyDef.BodyType.DynamicBody;
+
+        fixtureDef = new FixtureDef();
+        fixtureDef.restitution = 1;
+        fixtureDef.friction = 0;
+        fixtureDef.density = 1;
+        fixtureDef.shape = new CircleShape();
+        fixtureDef.shape.setRadius(particleRadius);
+
+        particleMass = MathUtils.PI * particleRadius * particleRadius * fixtureDef.density;
+    }
+
+    public World getWorld() {
+        return b2world;
+    }
+
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    @Override
+    public void setWallSize(float size) {
+        wallSize = size;
+        if (walls == null)
+            createWalls();
+
+        wallOffset = size / 2 + wallThickness / 2;
+        for (int i = 0; i < walls.length; i++) {
+            wallVelocity[i] = 0;
+        }
+        placeWalls();
+        wallSpeed = 0;
+    }
+
+    @Override
+    public void moveWalls(float size, float dt) {
+        wallSize = size;
+
+        // The walls are far too heavy for the particles to slow down noticeably, so aim them to arrive at the end of
+        // the step, where placeWalls() then puts them exactly
+        float offset = size / 2 + wallThickness / 2;
+        wallSpeed = Math.abs(offset - wallOffset) / dt;
+        wallVelocity[0] = (wallOffset - offset) / dt;
+        wallVelocity[1] = (offset - wallOffset) / dt;
+        wallVelocity[2] = (offset - wallOffset) / dt;
+        wallVelocity[3] = (wallOffset - offset) / dt;
+        wallOffset = offset;
+        walls[0].setLinearVelocity(0, wallVelocity[0]);
+        walls[1].setLinearVelocity(0, wallVelocity[1]);
+        walls[2].setLinearVelocity(wallVelocity[2], 0);
+        walls[3].setLinearVelocity(wallVelocity[3], 0);
+    }
+
+    @Override
+    public void setTemperature(float t) {
+        this.t = t;
+    }
+
+    @Override
+    public void setRandom(Random random) {
+        this.random = random;
+        seeder.setRandom(random);
+    }
+
+    @Override
+    public void setParticleCount(int count) {
+        createParticles(count);
+    }
+
+    @Override
+    public int getParticleCount() {
+        return particles.size();
+    }
+
+    @Override
+    public void saveState(ParticleState state) {
+        int count = particles.size();
+        state.setCount(count);
+        System.arraycopy(x, 0, state.x, 0, count);
+        System.arraycopy(y, 0, state.y, 0, count);
+        System.arraycopy(vx, 0, state.vx, 0, count);
+        System.arraycopy(vy, 0, state.vy, 0, count);
+    }
+
+    @Override
+    public void restoreState(ParticleState state, float scale) {
+        createParticles(state.count);
+        for (int i = 0; i < state.count; i++) {
+            place(i, state.x[i] * scale, state.y[i] * scale, state.vx[i], state.vy[i]);
+        }
+    }
+
+    private void createWalls() {
+        BodyDef bodyDef = new BodyDef();
+        bodyDef.type = BodyDef.BodyType.DynamicBody;
+        bodyDef.fixedRotation = true;
+
+        float thick = wallThickness / 2;
+
+        FixtureDef wall = new FixtureDef();
+        PolygonShape shape = new PolygonShape();
+        wall.shape = shape;
+        wall.friction = 0;
+        wall.restitution = 1;
+        // The walls overlap at the corners, keep them from pushing each other apart
+        wall.filter.groupIndex = -1;
+
+        MassData mass = new MassData();
+        mass.mass = WALL_MASS * particleMass;
+
+        walls = new Body[4];
+        for (int i = 0; i < walls.length; i++) {
+            // Bottom and top, then right and left
+            if (i < 2) shape.setAsBox(WALL_REACH, thick);
+            else shape.setAsBox(thick, WALL_REACH);
+            walls[i] = b2world.createBody(bodyDef);
+            walls[i].createFixture(wall);
+            walls[i].setMassData(mass);
+        }
+        shape.dispose();
+    }
+
+    /**
+     * Puts the walls where they should be at the end of the step, moving at the velocity they were sent with.
+     */
+    private void placeWalls() {
+        walls[0].setTransform(0, -wallOffset, 0);
+        walls[1].setTransform(0, wallOffset, 0);
+        walls[2].setTransform(wallOffset, 0, 0);
+        walls[3].setTransform(-wallOffset, 0, 0);
+        walls[0].setLinearVelocity(0, wallVelocity[0]);
+        walls[1].setLinearVelocity(0, wallVelocity[1]);
+        walls[2].setLinearVelocity(wallVelocity[2], 0);
+        walls[3].setLinearVelocity(wallVelocity[3], 0);
+    }
+
+    /**
+     * Adds up how much the particles have pushed the walls outwards over the step, from how much faster outwards
+     * than they were sent each wall is moving now.
+     */
+    private void gatherWalls() {
+        float push = (wallVelocity[0] - walls[0].getLinearVelocity().y)
+                + (walls[1].getLinearVelocity().y - wallVelocity[1])
+                + (walls[2].getLinearVelocity().x - wallVelocity[2])
+                + (wallVelocity[3] - walls[3].getLinearVelocity().x);
+        wallImpulse += push * WALL_MASS;
+        placeWalls();
+    }
+
+    private void createParticles(int count) {
+        if (x.length < count) {
+            int capacity = Math.max(count, x.length * 2);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            vx = Arrays.copyOf(vx, capacity);
+            vy = Arrays.copyOf(vy, capacity);
+        }
+
+        // Park surplus bodies instead of destroying them
+        while (count < particles.size()) {
+            Body particle = particles.remove(particles.size() - 1);
+            particle.setActive(false);
+            pool.add(particle);
+        }
+
+        int from = particles.size();
+        while (particles.size() < count) {
+            Body particle;
+            if (pool.isEmpty()) {
+                particle = b2world.createBody(bodyDef);
+                particle.createFixture(fixtureDef);
+            } else {
+                particle = pool.remove(pool.size() - 1);
+                particle.setActive(true);
+            }
+            particles.add(particle);
+        }
+
+        seeder.seed(this, from, count, wallSize / 2, particleRadius, t);
+        for (int i = from; i < count; i++) {
+            int k = i - from;
+            place(i, seeder.x[k], seeder.y[k], seeder.vx[k], seeder.vy[k]);
+        }
+    }
+
+    private void spawn(int i) {
+        float size = wallSize / 2;
+        float thick = wallThickness / 2;
+
+        // Each velocity component of a unit mass particle is normal with variance kT, here t / 2
+        float sigma = (float) Math.sqrt(t / 2);
+        float range = size - thick;
+        place(i, (random.nextFloat() * 2 - 1) * range, (random.nextFloat() * 2 - 1) * range,
+                (float) random.nextGaussian() * sigma, (float) random.nextGaussian() * sigma);
+    }
+
+    private void place(int i, float x, float y, float vx, float vy) {
+        Body particle = particles.get(i);
+        particle.setTransform(x, y, 0);
+        particle.setLinearVelocity(vx, vy);
+
+        this.x[i] = x;
+        this.y[i] = y;
+        this.vx[i] = vx;
+        this.vy[i] = vy;
+    }
+
+    @Override
+    public void step(float dt) {
+        profiler.begin(Profiler.ESCAPE);
+        respawnEscaped();
+        profiler.end(Profiler.ESCAPE);
+
+        // The walls keep their velocity through all substeps, so they still arrive at the end of dt
+        substeps = substeps(dt);
+        float h = dt / substeps;
+        for (int s = 0; s < substeps; s++) {
+            b2world.step(h, 3, 6);
+        }
+
+        gatherWalls();
+        gather();
+    }
+
+    private int substeps(float dt) {
+        float maxSpeed2 = 0;
+        for (int i = 0; i < particles.size(); i++) {
+            maxSpeed2 = Math.max(maxSpeed2, vx[i] * vx[i] + vy[i] * vy[i]);
+        }
+        float reach = ((float) Math.sqrt(maxSpeed2) + wallSpeed) * dt;
+        return MathUtils.clamp((int) Math.ceil(reach / (wallThickness / 4)), 1, MAX_SUBSTEPS);
+    }
+
+    /**
+     * @return world steps the last step was split into
+     */
+    public int getSubsteps() {
+        return substeps;
+    }
+
+    /**
+     * @return particles respawned so far because they got through a wall
+     */
+    public int getEscapes() {
+        return escapes;
+    }
+
+    private void gather() {
+        for (int i = 0; i < particles.size(); i++) {
+            Body b = particles.get(i);
+            Vector2 position = b.getPosition();
+            x[i] = position.x;
+            y[i] = position.y;
+            Vector2 velocity = b.getLinearVelocity();
+            vx[i] = velocity.x;
+            vy[i] = velocity.y;
+        }
+    }
+
+    /**
+     * Moves all particles found outside the box back in at a random spot.
+     */
+    public void respawnEscaped() {
+        float size = wallSize / 2 + wallThickness;
+        for (int i = 0; i < particles.size(); i++) {
+            if (x[i] < -size || x[i] > size || y[i] < -size || y[i] > size) {
+                spawn(i);
+                escapes++;
+            }
+        }
+    }
+
+    @Override
+    public float getX(int i) {
+        return x[i];
+    }
+
+    @Override
+    public float getY(int i) {
+        return y[i];
+    }
+
+    @Override
+    public float getSpeed2(int i) {
+        return vx[i] * vx[i] + vy[i] * vy[i];
+    }
+
+    @Override
+    public float meanSpeed2() {
+        float vel2 = 0;
+        for (int i = 0; i < particles.size(); i++) {
+            vel2 += vx[i] * vx[i] + vy[i] * vy[i];
+        }
+        return vel2 / particles.size();
+    }
+
+    @Override
+    public void scaleVelocities(float scale) {
+        for (int i = 0; i < particles.size(); i++) {
+            vx[i] *= scale;
+            vy[i] *= scale;
+            particles.get(i).setLinearVelocity(vx[i], vy[i]);
+        }
+    }
+
+    @Override
+    public float takeWallImpulse() {
+        float impulse = wallImpulse;
+        wallImpulse = 0;
+        return impulse;
+    }
+
+    @Override
+    public void dispose() {
+        fixtureDef.shape.dispose();
+        b2world.dispose();
+    }
+
+}
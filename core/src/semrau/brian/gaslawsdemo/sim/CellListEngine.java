@@ -0,0 +1,315 @@
+package semrau.brian.gaslawsdemo.sim;
+
+import com.badlogic.gdx.math.MathUtils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Fixed time step engine for large particle counts.
+ * <p>
+ * Particle state lives in plain float arrays. Every step bins the particles into a uniform grid of cells one particle
+ * diameter wide with a counting sort, resolves overlapping pairs in a single pass over each cell and its forward
+ * neighbours, and then moves everything and bounces it off the walls. Nothing is allocated unless the particle count or box
+ * grows past what the buffers can hold.
+ */
+public class CellListEngine implements ParticleEngine {
+
+    private final float radius;
+
+    private float half;
+    private float t;
+
+    private float wallImpulse;
+
+    private int count;
+    private float[] x = new float[0];
+    private float[] y = new float[0];
+    private float[] vx = new float[0];
+    private float[] vy = new float[0];
+
+    // Counting sort of particles by cell: particles of cell c are sorted[cellStart[c] .. cellStart[c + 1])
+    private int cellsPerSide;
+    private float cellSize;
+    private int[] cellStart = new int[1];
+    private int[] cellOf = new int[0];
+    private int[] sorted = new int[0];
+
+    private final Seeder seeder = new Seeder();
+
+    public CellListEngine(float particleRadius) {
+        radius = particleRadius;
+    }
+
+    @Override
+    public void setWallSize(float size) {
+        half = size / 2;
+
+        float max = Math.max(half - radius, 0);
+        for (int i = 0; i < count; i++) {
+            x[i] = MathUtils.clamp(x[i], -max, max);
+            y[i] = MathUtils.clamp(y[i], -max, max);
+        }
+
+        cellsPerSide = Math.max(1, (int) (half / radius));
+        cellSize = half * 2 / cellsPerSide;
+        if (cellStart.length < cellsPerSide * cellsPerSide + 1) {
+            cellStart = new int[cellsPerSide * cellsPerSide + 1];
+        }
+    }
+
+    @Override
+    public void moveWalls(float size, float dt) {
+        if (size / 2 == half) return;
+        float scale = size / 2 / half;
+        for (int i = 0; i < count; i++) {
+            x[i] *= scale;
+            y[i] *= scale;
+        }
+        setWallSize(size);
+    }
+
+    @Override
+    public void setTemperature(float t) {
+        this.t = t;
+    }
+
+    @Override
+    public void setRandom(Random random) {
+        seeder.setRandom(random);
+    }
+
+    @Override
+    public void setParticleCount(int count) {
+        if (count > x.length) {
+            int capacity = Math.max(count, x.length * 2);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            vx = Arrays.copyOf(vx, capacity);
+            vy = Arrays.copyOf(vy, capacity);
+            cellOf = Arrays.copyOf(cellOf, capacity);
+            sorted = Arrays.copyOf(sorted, capacity);
+        }
+
+        seeder.seed(this, this.count, count, half, radius, t);
+        for (int i = this.count; i < count; i++) {
+            int k = i - this.count;
+            x[i] = seeder.x[k];
+            y[i] = seeder.y[k];
+            vx[i] = seeder.vx[k];
+            vy[i] = seeder.vy[k];
+        }
+        this.count = count;
+    }
+
+    @Override
+    public int getParticleCount() {
+        return count;
+    }
+
+    @Override
+    public void saveState(ParticleState state) {
+        state.setCount(count);
+        System.arraycopy(x, 0, state.x, 0, count);
+        System.arraycopy(y, 0, state.y, 0, count);
+        System.arraycopy(vx, 0, state.vx, 0, count);
+        System.arraycopy(vy, 0, state.vy, 0, count);
+    }
+
+    @Override
+    public void restoreState(ParticleState state, float scale) {
+        if (state.count != count) setParticleCount(state.count);
+        for (int i = 0; i < count; i++) {
+            x[i] = state.x[i] * scale;
+            y[i] = state.y[i] * scale;
+        }
+        System.arraycopy(state.vx, 0, vx, 0, count);
+        System.arraycopy(state.vy, 0, vy, 0, count);
+    }
+
+    @Override
+    public void step(float dt) {
+        bin();
+        collide(0, cellsPerSide);
+        addWallImpulse(move(dt, 0, count));
+    }
+
+    @Override
+    public float getX(int i) {
+        return x[i];
+    }
+
+    @Override
+    public float getY(int i) {
+        return y[i];
+    }
+
+    @Override
+    public float getSpeed2(int i) {
+        return vx[i] * vx[i] + vy[i] * vy[i];
+    }
+
+    @Override
+    public float meanSpeed2() {
+        return sumSpeed2(0, count) / count;
+    }
+
+    @Override
+    public void scaleVelocities(float scale) {
+        scaleVelocities(scale, 0, count);
+    }
+
+    @Override
+    public float takeWallImpulse() {
+        float impulse = wallImpulse;
+        wallImpulse = 0;
+        return impulse;
+    }
+
+    @Override
+    public void dispose() {
+    }
+
+    // Simulation, split into ranges so subclasses can spread the work over several threads
+
+    protected int getCellsPerSide() {
+        return cellsPerSide;
+    }
+
+    protected float sumSpeed2(int from, int to) {
+        float vel2 = 0;
+        for (int i = from; i < to; i++) {
+            vel2 += vx[i] * vx[i] + vy[i] * vy[i];
+        }
+        return vel2;
+    }
+
+    protected void scaleVelocities(float scale, int from, int to) {
+        for (int i = from; i < to; i++) {
+            vx[i] *= scale;
+            vy[i] *= scale;
+        }
+    }
+
+    protected void addWallImpulse(float impulse) {
+        wallImpulse += impulse;
+    }
+
+    /**
+     * @return momentum per unit mass the walls took from the particles in [from, to)
+     */
+    protected float move(float dt, int from, int to) {
+        float impulse = 0;
+        float max = half - radius;
+        for (int i = from; i < to; i++) {
+            x[i] += vx[i] * dt;
+            y[i] += vy[i] * dt;
+
+            // Mirror anything that went through a wall back inside
+            if (x[i] > max) {
+                x[i] = 2 * max - x[i];
+                impulse += 2 * Math.abs(vx[i]);
+                vx[i] = -Math.abs(vx[i]);
+            } else if (x[i] < -max) {
+                x[i] = -2 * max - x[i];
+                impulse += 2 * Math.abs(vx[i]);
+                vx[i] = Math.abs(vx[i]);
+            }
+            if (y[i] > max) {
+                y[i] = 2 * max - y[i];
+                impulse += 2 * Math.abs(vy[i]);
+                vy[i] = -Math.abs(vy[i]);
+            } else if (y[i] < -max) {
+                y[i] = -2 * max - y[i];
+                impulse += 2 * Math.abs(vy[i]);
+                vy[i] = Math.abs(vy[i]);
+            }
+            // Still out after one bounce means it crossed the whole box this step
+            x[i] = MathUtils.clamp(x[i], -max, max);
+            y[i] = MathUtils.clamp(y[i], -max, max);
+        }
+        return impulse;
+    }
+
+    protected void bin() {
+        int cells = cellsPerSide * cellsPerSide;
+        Arrays.fill(cellStart, 0, cells, 0);
+        for (int i = 0; i < count; i++) {
+            int cx = Math.min((int) ((x[i] + half) / cellSize), cellsPerSide - 1);
+            int cy = Math.min((int) ((y[i] + half) / cellSize), cellsPerSide - 1);
+            int c = cx + cy * cellsPerSide;
+            cellOf[i] = c;
+            cellStart[c]++;
+        }
+        for (int c = 1; c < cells; c++) {
+            cellStart[c] += cellStart[c - 1];
+        }
+        cellStart[cells] = count;
+        // Each cell's counter now holds its end, filling back to front walks it down to its start
+        for (int i = count - 1; i >= 0; i--) {
+            sorted[--cellStart[cellOf[i]]] = i;
+        }
+    }
+
+    /**
+     * Resolves every pair with its first particle in cell rows [fromRow, toRow). This writes to particles up to and
+     * including row toRow.
+     */
+    protected void collide(int fromRow, int toRow) {
+        for (int cy = fromRow; cy < toRow; cy++) {
+            for (int cx = 0; cx < cellsPerSide; cx++) {
+                int c = cx + cy * cellsPerSide;
+                int start = cellStart[c];
+                int end = cellStart[c + 1];
+                for (int k = start; k < end; k++) {
+                    int i = sorted[k];
+                    // Own cell, then the forward half of the neighbourhood so every pair is seen once
+                    for (int l = k + 1; l < end; l++) {
+                        resolve(i, sorted[l]);
+                    }
+                    if (cx + 1 < cellsPerSide) {
+                        collideCell(i, c + 1);
+                    }
+                    if (cy + 1 < cellsPerSide) {
+                        if (cx > 0) collideCell(i, c + cellsPerSide - 1);
+                        collideCell(i, c + cellsPerSide);
+                        if (cx + 1 < cellsPerSide) collideCell(i, c + cellsPerSide + 1);
+                    }
+                }
+            }
+        }
+    }
+
+    private void collideCell(int i, int c) {
+        for (int l = cellStart[c], end = cellStart[c + 1]; l < end; l++) {
+            resolve(i, sorted[l]);
+        }
+    }
+
+    private void resolve(int a, int b) {
+        float dx = x[b] - x[a];
+        float dy = y[b] - y[a];
+        float dist2 = dx * dx + dy * dy;
+        float sigma = radius * 2;
+        if (dist2 >= sigma * sigma || dist2 == 0) return;
+
+        // Only bounce pairs that are still approaching, equal masses swap velocity along the line of centres
+        float dvn = (vx[b] - vx[a]) * dx + (vy[b] - vy[a]) * dy;
+        if (dvn < 0) {
+            float j = dvn / dist2;
+            vx[a] += j * dx;
+            vy[a] += j * dy;
+            vx[b] -= j * dx;
+            vy[b] -= j * dy;
+        }
+
+        // Push the pair apart so they don't stay stuck together
+        float dist = (float) Math.sqrt(dist2);
+        float push = (sigma - dist) / dist / 2;
+        x[a] -= dx * push;
+        y[a] -= dy * push;
+        x[b] += dx * push;
+        y[b] += dy * push;
+    }
+
+}
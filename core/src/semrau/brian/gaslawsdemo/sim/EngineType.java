@@ -0,0 +1,36 @@
+package semrau.brian.gaslawsdemo.sim;
+
+public enum EngineType implements ParticleEngine.Factory {
+
+    /**
+     * Box2D bodies, the original reference implementation.
+     */
+    BOX2D,
+    /**
+     * Exact event-driven hard disks.
+     */
+    EVENT_DRIVEN,
+    /**
+     * Fixed time step with a cell list, for very large particle counts.
+     */
+    CELL_LIST,
+    /**
+     * Lennard-Jones real gas with Verlet neighbour lists.
+     */
+    LENNARD_JONES;
+
+    @Override
+    public ParticleEngine create(float particleRadius, float wallThickness) {
+        switch (this) {
+            case EVENT_DRIVEN:
+                return new EventDrivenEngine(particleRadius);
+            case CELL_LIST:
+                return new CellListEngine(particleRadius);
+            case LENNARD_JONES:
+                return new LennardJonesEngine(particleRadius);
+            default:
+                return new Box2DEngine(particleRadius, wallThickness);
+        }
+    }
+
+}
@@ -0,0 +1,34 @@
+package semrau.brian.gaslawsdemo.sim;
+
+import com.badlogic.gdx.utils.Disposable;
+
+/**
+ * Independent copies of the displayed simulation that run somewhere else and only contribute their measurements, so
+ * readouts average over several boxes of gas instead of one small, noisy box. The displayed simulation is replica 0.
+ */
+public interface Ensemble extends Disposable {
+
+    /**
+     * Steers the other replicas to the state of the displayed simulation and merges their measurements with its own.
+     * Called on the render thread once per frame, it must not wait for any replica.
+     *
+     * @param primary the snapshot being displayed
+     */
+    void merge(Snapshot primary, int particlesPerMole);
+
+    /**
+     * @return replicas that went into the last merge, the displayed one included
+     */
+    int getReplicas();
+
+    /**
+     * @return mean over the replicas of their measured pressure, in atm
+     */
+    float getPressureMean();
+
+    /**
+     * @return standard error of {@link #getPressureMean()}, in atm, or NaN while only the displayed replica merged
+     */
+    float getPressureError();
+
+}
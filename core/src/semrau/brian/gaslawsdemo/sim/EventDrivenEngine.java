@@ -0,0 +1,447 @@
+package semrau.brian.gaslawsdemo.sim;
+
+import com.badlogic.gdx.math.MathUtils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Event-driven hard-disk engine.
+ * <p>
+ * Particles fly in straight lines between collisions, so instead of stepping a solver we predict when the next
+ * particle-particle, particle-wall or cell-crossing event happens and jump straight to it. Collisions are perfectly
+ * elastic and resolved exactly, which means kinetic energy is conserved and nothing can tunnel through the walls no
+ * matter how fast it goes.
+ * <p>
+ * Each particle stores its position at its own last update time (tp) and is only moved forward when it takes part in
+ * an event. Every particle has exactly one pending event, its earliest, and a tournament tree over those gives the
+ * next event of the whole system in O(1) and takes O(log N) to update. An event with a partner that has since changed
+ * course is noticed through per-particle event counters and simply predicted again. A uniform grid of cells at least
+ * one diameter wide limits predictions to neighbouring particles.
+ */
+public class EventDrivenEngine implements ParticleEngine {
+
+    private static final int NONE = -1;
+    private static final int WALL_X = -2;
+    private static final int WALL_Y = -3;
+    private static final int CELL_X = -4;
+    private static final int CELL_Y = -5;
+
+    private final double radius;
+
+    private double half;
+    private float t;
+
+    // Particle state, valid at local time tp[i]
+    private int count;
+    private double[] x = new double[0];
+    private double[] y = new double[0];
+    private double[] vx = new double[0];
+    private double[] vy = new double[0];
+    private double[] tp = new double[0];
+    private int[] events = new int[0];
+
+    // Cell list, doubly linked so particles can hop between cells in O(1)
+    private int cellsPerSide;
+    private double cellSize;
+    private int[] cellHead = new int[0];
+    private int[] cell = new int[0];
+    private int[] next = new int[0];
+    private int[] prev = new int[0];
+
+    // Next event of each particle and the tournament tree over them
+    private double now;
+    private double behind; // simulated time the last step ran out of event budget for
+    private double wallImpulse;
+    private double[] eventTime = new double[0];
+    private int[] eventPartner = new int[0];
+    private int[] eventCount = new int[0];
+    private int leaves = 1;
+    private int[] tree = new int[2];
+
+    private final Seeder seeder = new Seeder();
+
+    public EventDrivenEngine(float particleRadius) {
+        radius = particleRadius;
+    }
+
+    @Override
+    public void setWallSize(float size) {
+        synchronize();
+        half = size / 2;
+
+        // Squeeze anything left outside the new walls back in
+        double max = Math.max(half - radius, 0);
+        for (int i = 0; i < count; i++) {
+            x[i] = MathUtils.clamp(x[i], -max, max);
+            y[i] = MathUtils.clamp(y[i], -max, max);
+        }
+        rebuild();
+    }
+
+    @Override
+    public void moveWalls(float size, float dt) {
+        if (size / 2 == half) return;
+        synchronize();
+        double scale = size / 2 / half;
+        for (int i = 0; i < count; i++) {
+            x[i] *= scale;
+            y[i] *= scale;
+        }
+        setWallSize(size);
+    }
+
+    @Override
+    public void setTemperature(float t) {
+        this.t = t;
+    }
+
+    @Override
+    public void setRandom(Random random) {
+        seeder.setRandom(random);
+    }
+
+    @Override
+    public void setParticleCount(int count) {
+        synchronize();
+        if (count > x.length) {
+            int capacity = Math.max(count, x.length * 2);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            vx = Arrays.copyOf(vx, capacity);
+            vy = Arrays.copyOf(vy, capacity);
+            tp = Arrays.copyOf(tp, capacity);
+            events = Arrays.copyOf(events, capacity);
+            cell = Arrays.copyOf(cell, capacity);
+            next = Arrays.copyOf(next, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+            eventTime = Arrays.copyOf(eventTime, capacity);
+            eventPartner = Arrays.copyOf(eventPartner, capacity);
+            eventCount = Arrays.copyOf(eventCount, capacity);
+        }
+
+        seeder.seed(this, this.count, count, (float) half, (float) radius, t);
+        for (int i = this.count; i < count; i++) {
+            int k = i - this.count;
+            x[i] = seeder.x[k];
+            y[i] = seeder.y[k];
+            vx[i] = seeder.vx[k];
+            vy[i] = seeder.vy[k];
+            tp[i] = now;
+        }
+        this.count = count;
+        rebuild();
+    }
+
+    @Override
+    public int getParticleCount() {
+        return count;
+    }
+
+    @Override
+    public void saveState(ParticleState state) {
+        synchronize();
+        state.setCount(count);
+        for (int i = 0; i < count; i++) {
+            state.x[i] = (float) x[i];
+            state.y[i] = (float) y[i];
+            state.vx[i] = (float) vx[i];
+            state.vy[i] = (float) vy[i];
+        }
+    }
+
+    @Override
+    public void restoreState(ParticleState state, float scale) {
+        if (state.count != count) setParticleCount(state.count);
+        for (int i = 0; i < count; i++) {
+            x[i] = state.x[i] * scale;
+            y[i] = state.y[i] * scale;
+            vx[i] = state.vx[i];
+            vy[i] = state.vy[i];
+            tp[i] = now;
+        }
+        behind = 0;
+        rebuild();
+    }
+
+    @Override
+    public void step(float dt) {
+        double target = now + dt + behind;
+        // Leave anything still pending for the next step rather than stall the frame. The particles then stop at the
+        // last event handled, so none of them passes a wall or another particle, and catch up next step.
+        int budget = 64 * count + 1024;
+        boolean finished = true;
+        while (count > 0) {
+            int a = tree[1];
+            double time = eventTime[a];
+            if (time > target) break;
+            if (budget-- == 0) {
+                finished = false;
+                break;
+            }
+
+            now = time;
+            int b = eventPartner[a];
+            switch (b) {
+                case WALL_X:
+                    advance(a);
+                    wallImpulse += 2 * Math.abs(vx[a]);
+                    vx[a] = -vx[a];
+                    events[a]++;
+                    predict(a);
+                    break;
+                case WALL_Y:
+                    advance(a);
+                    wallImpulse += 2 * Math.abs(vy[a]);
+                    vy[a] = -vy[a];
+                    events[a]++;
+                    predict(a);
+                    break;
+                case CELL_X:
+                    advance(a);
+                    moveCell(a, vx[a] > 0 ? 1 : -1);
+                    predict(a);
+                    break;
+                case CELL_Y:
+                    advance(a);
+                    moveCell(a, vy[a] > 0 ? cellsPerSide : -cellsPerSide);
+                    predict(a);
+                    break;
+                default:
+                    if (events[b] != eventCount[a]) {
+                        // The partner changed course since this was predicted
+                        predict(a);
+                        break;
+                    }
+                    advance(a);
+                    advance(b);
+                    collide(a, b);
+                    events[a]++;
+                    events[b]++;
+                    predict(a);
+                    predict(b);
+                    break;
+            }
+        }
+        if (finished) now = target;
+        // A gas too dense for the budget would only fall further behind, so let it run slow instead
+        behind = Math.min(target - now, 4 * dt);
+        synchronize();
+
+        // Restart the clock every step so event times never lose precision
+        for (int i = 0; i < count; i++) {
+            eventTime[i] -= now;
+            tp[i] = 0;
+        }
+        now = 0;
+    }
+
+    @Override
+    public float getX(int i) {
+        return (float) x[i];
+    }
+
+    @Override
+    public float getY(int i) {
+        return (float) y[i];
+    }
+
+    @Override
+    public float getSpeed2(int i) {
+        return (float) (vx[i] * vx[i] + vy[i] * vy[i]);
+    }
+
+    @Override
+    public float meanSpeed2() {
+        double vel2 = 0;
+        for (int i = 0; i < count; i++) {
+            vel2 += vx[i] * vx[i] + vy[i] * vy[i];
+        }
+        return (float) (vel2 / count);
+    }
+
+    @Override
+    public void scaleVelocities(float scale) {
+        if (scale == 1 || !(scale > 0) || Float.isInfinite(scale)) return;
+        synchronize();
+        // Every path stays the same, it is just travelled faster or slower, so the pending events keep their
+        // order and only their remaining time changes
+        for (int i = 0; i < count; i++) {
+            vx[i] *= scale;
+            vy[i] *= scale;
+            eventTime[i] = now + (eventTime[i] - now) / scale;
+        }
+    }
+
+    @Override
+    public float takeWallImpulse() {
+        float impulse = (float) wallImpulse;
+        wallImpulse = 0;
+        return impulse;
+    }
+
+    @Override
+    public void dispose() {
+    }
+
+    // Simulation
+
+    private void advance(int i) {
+        double dt = now - tp[i];
+        x[i] += vx[i] * dt;
+        y[i] += vy[i] * dt;
+        tp[i] = now;
+    }
+
+    private void synchronize() {
+        for (int i = 0; i < count; i++) {
+            advance(i);
+        }
+    }
+
+    private void collide(int a, int b) {
+        double dx = x[b] - x[a];
+        double dy = y[b] - y[a];
+        double dist2 = dx * dx + dy * dy;
+        if (dist2 == 0) return;
+        // Equal masses: swap the velocity components along the line of centres
+        double j = ((vx[b] - vx[a]) * dx + (vy[b] - vy[a]) * dy) / dist2;
+        vx[a] += j * dx;
+        vy[a] += j * dy;
+        vx[b] -= j * dx;
+        vy[b] -= j * dy;
+    }
+
+    private void rebuild() {
+        synchronize();
+
+        cellsPerSide = Math.max(1, Math.min((int) (half / radius), (int) Math.sqrt(count) + 1));
+        cellSize = half * 2 / cellsPerSide;
+        if (cellHead.length < cellsPerSide * cellsPerSide) {
+            cellHead = new int[cellsPerSide * cellsPerSide];
+        }
+        Arrays.fill(cellHead, -1);
+        for (int i = 0; i < count; i++) {
+            int cx = MathUtils.clamp((int) ((x[i] + half) / cellSize), 0, cellsPerSide - 1);
+            int cy = MathUtils.clamp((int) ((y[i] + half) / cellSize), 0, cellsPerSide - 1);
+            insert(i, cx + cy * cellsPerSide);
+        }
+
+        leaves = Math.max(1, MathUtils.nextPowerOfTwo(count));
+        if (tree.length < leaves * 2) {
+            tree = new int[leaves * 2];
+        }
+        for (int k = 0; k < leaves; k++) {
+            tree[leaves + k] = k < count ? k : -1;
+        }
+        for (int i = 0; i < count; i++) {
+            schedule(i);
+        }
+        for (int k = leaves - 1; k > 0; k--) {
+            tree[k] = earlier(tree[2 * k], tree[2 * k + 1]);
+        }
+    }
+
+    private void insert(int i, int c) {
+        cell[i] = c;
+        prev[i] = -1;
+        next[i] = cellHead[c];
+        if (next[i] != -1) prev[next[i]] = i;
+        cellHead[c] = i;
+    }
+
+    private void moveCell(int i, int offset) {
+        if (prev[i] != -1) next[prev[i]] = next[i];
+        else cellHead[cell[i]] = next[i];
+        if (next[i] != -1) prev[next[i]] = prev[i];
+        insert(i, cell[i] + offset);
+    }
+
+    private void predict(int i) {
+        schedule(i);
+        for (int k = (leaves + i) >> 1; k > 0; k >>= 1) {
+            tree[k] = earlier(tree[2 * k], tree[2 * k + 1]);
+        }
+    }
+
+    private int earlier(int a, int b) {
+        if (a == -1) return b;
+        if (b == -1) return a;
+        return eventTime[b] < eventTime[a] ? b : a;
+    }
+
+    /**
+     * Finds the earliest event of particle i without touching the tree.
+     */
+    private void schedule(int i) {
+        double xi = x[i] + vx[i] * (now - tp[i]);
+        double yi = y[i] + vy[i] * (now - tp[i]);
+        double first = Double.POSITIVE_INFINITY;
+        int partner = NONE;
+
+        // Walls
+        double max = half - radius;
+        double dt;
+        if (vx[i] != 0) {
+            dt = Math.max(((vx[i] > 0 ? max : -max) - xi) / vx[i], 0);
+            if (dt < first) {
+                first = dt;
+                partner = WALL_X;
+            }
+        }
+        if (vy[i] != 0) {
+            dt = Math.max(((vy[i] > 0 ? max : -max) - yi) / vy[i], 0);
+            if (dt < first) {
+                first = dt;
+                partner = WALL_Y;
+            }
+        }
+
+        // Cell boundaries
+        int cx = cell[i] % cellsPerSide;
+        int cy = cell[i] / cellsPerSide;
+        if (vx[i] > 0 && cx < cellsPerSide - 1) dt = ((cx + 1) * cellSize - half - xi) / vx[i];
+        else if (vx[i] < 0 && cx > 0) dt = (cx * cellSize - half - xi) / vx[i];
+        else dt = Double.POSITIVE_INFINITY;
+        if (dt < first) {
+            first = Math.max(dt, 0);
+            partner = CELL_X;
+        }
+        if (vy[i] > 0 && cy < cellsPerSide - 1) dt = ((cy + 1) * cellSize - half - yi) / vy[i];
+        else if (vy[i] < 0 && cy > 0) dt = (cy * cellSize - half - yi) / vy[i];
+        else dt = Double.POSITIVE_INFINITY;
+        if (dt < first) {
+            first = Math.max(dt, 0);
+            partner = CELL_Y;
+        }
+
+        // Neighbours
+        double sigma2 = 4 * radius * radius;
+        for (int ny = Math.max(cy - 1, 0); ny <= Math.min(cy + 1, cellsPerSide - 1); ny++) {
+            for (int nx = Math.max(cx - 1, 0); nx <= Math.min(cx + 1, cellsPerSide - 1); nx++) {
+                for (int j = cellHead[nx + ny * cellsPerSide]; j != -1; j = next[j]) {
+                    if (j == i) continue;
+                    double dx = x[j] + vx[j] * (now - tp[j]) - xi;
+                    double dy = y[j] + vy[j] * (now - tp[j]) - yi;
+                    double dvx = vx[j] - vx[i];
+                    double dvy = vy[j] - vy[i];
+                    double b = dx * dvx + dy * dvy;
+                    if (b >= 0) continue; // moving apart
+                    double dvdv = dvx * dvx + dvy * dvy;
+                    double d = b * b - dvdv * (dx * dx + dy * dy - sigma2);
+                    if (d < 0) continue; // miss
+                    dt = Math.max(-(b + Math.sqrt(d)) / dvdv, 0);
+                    if (dt < first) {
+                        first = dt;
+                        partner = j;
+                    }
+                }
+            }
+        }
+
+        eventTime[i] = now + first;
+        eventPartner[i] = partner;
+        eventCount[i] = partner >= 0 ? events[partner] : 0;
+    }
+
+}
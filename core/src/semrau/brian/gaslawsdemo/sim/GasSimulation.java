@@ -0,0 +1,295 @@
+package semrau.brian.gaslawsdemo.sim;
+
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.RandomXS128;
+
+/**
+ * The simulated gas without any of the GUI: volume, temperature and amount of gas, the particle engine that shows
+ * them and the thermostat that keeps the particles at the set temperature. Nothing in here needs Gdx.graphics, so
+ * it can also be driven headlessly.
+ */
+public class GasSimulation {
+
+    public static final float R = 0.082057f; // L atm mol-1 K-1
+
+    private static final float PISTON_RATE = 8; // fraction of the remaining distance the walls cover per second
+    private static final int EQUILIBRATION_STEPS = 120; // steps at a state before it is worth caching
+
+    private final ParticleEngine engine;
+    private final float particleRadius = 3.0f / 16.0f;
+    private final float wallThickness = 5;
+
+    private int particlesPerMole;
+
+    private float v, n, t;
+
+    private final SampleWindow pressure = new SampleWindow(120); // 2 s of steps
+
+    private Profiler profiler = new Profiler();
+
+    private final PendingState pending = new PendingState();
+
+    private StateCache cache;
+    private long stateKey = -1;
+    private int stateCount;
+    private int stepsAtState;
+
+    private boolean piston = true;
+    private float wallSize = -1; // where the walls actually are, catching up with wallSize()
+
+    // Bumped whenever particle i may no longer be the particle it was a step before
+    private int generation;
+    private int generationCount, generationEscapes;
+
+    private final MeanSquareDisplacement displacement = new MeanSquareDisplacement();
+    private int displacementCount = -1;
+    private float displacementV, displacementT;
+
+    /**
+     * Seeds the simulation from {@link MathUtils#random}, so it is only repeatable when created on the thread that
+     * seeded that.
+     */
+    public GasSimulation(ParticleEngine.Factory engineFactory, int particlesPerMole) {
+        this(engineFactory, particlesPerMole, MathUtils.random.nextLong());
+    }
+
+    /**
+     * @param seed seeds the simulation's own random numbers, so simulations stepped on different threads neither
+     *             share a generator nor change each other's draws
+     */
+    public GasSimulation(ParticleEngine.Factory engineFactory, int particlesPerMole, long seed) {
+        engine = engineFactory.create(particleRadius, wallThickness);
+        engine.setRandom(new RandomXS128(seed));
+        this.particlesPerMole = particlesPerMole;
+    }
+
+    public ParticleEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Times the thermostat and engine step, and the Box2D escape check, into the given profiler from now on.
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+        if (engine instanceof Box2DEngine) ((Box2DEngine) engine).setProfiler(profiler);
+    }
+
+    /**
+     * Restores states from the cache when the gas returns to them, and saves new ones once they settled.
+     */
+    public void setStateCache(StateCache cache) {
+        this.cache = cache;
+        stateKey = -1;
+    }
+
+    public float getParticleRadius() {
+        return particleRadius;
+    }
+
+    public float getWallThickness() {
+        return wallThickness;
+    }
+
+    /**
+     * @return the box width for the set volume
+     */
+    public float wallSize() {
+        return ((float) Math.sqrt(v)) * 5;
+    }
+
+    /**
+     * @return the current box width, which lags behind {@link #wallSize()} while the piston is moving
+     */
+    public float getWallSize() {
+        return wallSize;
+    }
+
+    /**
+     * With the piston on, volume changes move the walls smoothly over the next steps. Otherwise the box jumps to the
+     * new size straight away.
+     */
+    public void setPiston(boolean piston) {
+        this.piston = piston;
+    }
+
+    public float getVolume() {
+        return v;
+    }
+
+    public void setVolume(float v) {
+        this.v = v;
+        if (!piston || wallSize < 0) {
+            wallSize = wallSize();
+            engine.setWallSize(wallSize);
+        }
+    }
+
+    public float getTemperature() {
+        return t;
+    }
+
+    public void setTemperature(float t) {
+        this.t = t;
+        engine.setTemperature(t);
+    }
+
+    public float getMoles() {
+        return n;
+    }
+
+    public void setMoles(float n) {
+        setMoles(n, particlesPerMole);
+    }
+
+    /**
+     * Changes the amount of gas and how many particles stand for one mol with a single change of particle count.
+     */
+    public void setMoles(float n, int particlesPerMole) {
+        this.n = n;
+        this.particlesPerMole = particlesPerMole;
+        engine.setParticleCount((int) (n * particlesPerMole));
+    }
+
+    public int getParticlesPerMole() {
+        return particlesPerMole;
+    }
+
+    /**
+     * Changes how many particles stand for one mol, adding or removing particles to match straight away.
+     */
+    public void setParticlesPerMole(int particlesPerMole) {
+        setMoles(n, particlesPerMole);
+    }
+
+    /**
+     * Rescales all velocities so the mean square speed matches the set temperature.
+     */
+    public void thermostat() {
+        if (engine.getParticleCount() == 0) return;
+
+        float vel2 = engine.meanSpeed2();
+        if (t == 0) t = 0.00001f;
+        float scale = (float) Math.sqrt(t / vel2);
+        engine.scaleVelocities(scale);
+    }
+
+    /**
+     * @return changes to apply at the start of the next step, for changing the gas from another thread
+     */
+    public PendingState getPending() {
+        return pending;
+    }
+
+    public void step(float dt) {
+        pending.applyTo(this);
+
+        if (cache != null) {
+            long key = StateCache.key(n, v, t);
+            int count = engine.getParticleCount();
+            if (key != stateKey) {
+                stateKey = key;
+                stepsAtState = 0;
+                // A cached state has its walls in place already, so skip the piston
+                if (cache.contains(key)) {
+                    wallSize = wallSize();
+                    engine.setWallSize(wallSize);
+                    cache.restore(key, engine, wallSize, count);
+                    generation++;
+                    stepsAtState = EQUILIBRATION_STEPS;
+                }
+            } else if (count != stateCount) {
+                // Particles per mol changed, the new particles have to settle before the state is worth saving
+                stepsAtState = 0;
+            }
+            stateCount = count;
+        }
+
+        // Make sure average temperature stays where it's set
+        profiler.begin(Profiler.THERMOSTAT);
+        thermostat();
+        profiler.end(Profiler.THERMOSTAT);
+
+        if (piston) {
+            float target = wallSize();
+            wallSize += (target - wallSize) * Math.min(1, PISTON_RATE * dt);
+            if (Math.abs(target - wallSize) < 0.001f) wallSize = target;
+            engine.moveWalls(wallSize, dt);
+        }
+
+        profiler.begin(Profiler.STEP);
+        engine.step(dt);
+        profiler.end(Profiler.STEP);
+
+        int count = engine.getParticleCount();
+        int escapes = engine instanceof Box2DEngine ? ((Box2DEngine) engine).getEscapes() : 0;
+        if (count != generationCount || escapes != generationEscapes) {
+            generationCount = count;
+            generationEscapes = escapes;
+            generation++;
+        }
+
+        // Displacements only tell about diffusion at one state, and not while the walls are pushing the gas around
+        if (count != displacementCount || v != displacementV || t != displacementT || wallSize != wallSize()) {
+            displacementCount = count;
+            displacementV = v;
+            displacementT = t;
+            displacement.clear();
+        } else {
+            displacement.sample(engine, dt, wallSize / 2);
+        }
+
+        // Only count steps once the walls have arrived
+        if (cache != null && wallSize == wallSize() && ++stepsAtState == EQUILIBRATION_STEPS) {
+            cache.save(stateKey, engine, wallSize);
+        }
+
+        // Wall impulse over perimeter and time is the 2D pressure of unit-mass particles, N t / 2A for an ideal
+        // gas. With A = 25 V and N = n particlesPerMole that is nRT/V times particlesPerMole / 50R, which converts
+        // it to atm.
+        float measured = engine.takeWallImpulse() / (4 * wallSize * dt);
+        pressure.add(measured * 50 * R / particlesPerMole);
+    }
+
+    /**
+     * @return pressure in atm calculated from the ideal gas law for the set state
+     */
+    public float idealPressure() {
+        return n * R * t / v;
+    }
+
+    /**
+     * @return the last couple of seconds of pressure measured from wall impulses, in atm
+     */
+    public SampleWindow getMeasuredPressure() {
+        return pressure;
+    }
+
+    /**
+     * @return a number that changes whenever a step left some particle index standing for a different particle than
+     * before: particles added or removed, a cached state restored or an escaped particle put back
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return mean square displacement of the particles since the state last changed
+     */
+    public MeanSquareDisplacement getDisplacement() {
+        return displacement;
+    }
+
+    /**
+     * @return diffusion coefficient at the current state in box units squared per second, 0 until measured
+     */
+    public float diffusionCoefficient() {
+        // Past a quarter of the box, the walls hold the displacement back
+        return displacement.diffusionCoefficient(wallSize / 4, t);
+    }
+
+    public void dispose() {
+        engine.dispose();
+    }
+
+}
@@ -0,0 +1,395 @@
+package semrau.brian.gaslawsdemo.sim;
+
+import com.badlogic.gdx.math.MathUtils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Real gas: particles attract each other a little at a distance and repel hard up close, through a Lennard-Jones
+ * potential cut off at {@link #CUTOFF} diameters. At high n and low t the attraction pulls the measured pressure
+ * below nRT/V; in a hot, dense gas the repulsion pushes it above.
+ * <p>
+ * Pair forces come from a Verlet neighbour list: every pair closer than the cutoff plus a {@link #SKIN} is listed
+ * once, found through a grid of cells at least that wide. The list holds as long as no particle has moved more than
+ * half the skin since it was built, which takes several substeps, so most substeps only walk the list.
+ * <p>
+ * Motion is integrated with velocity Verlet. Each step is split into substeps short enough that neither the speed of
+ * the fastest particle nor the strongest force moves anything more than {@link #MAX_MOVE} diameters per substep,
+ * which keeps the steep repulsion from blowing up. Should a step need more than {@link #MAX_SUBSTEPS}, the rest of
+ * it is dropped: the gas briefly runs slow rather than exploding.
+ */
+public class LennardJonesEngine implements ParticleEngine {
+
+    /**
+     * Depth of the potential well, in units of t. t = 2kT per unit mass in 2D, so at t = 2 EPSILON kT equals the well
+     * depth and below about t = EPSILON the gas starts to condense.
+     */
+    public static final float EPSILON = 100;
+    public static final float CUTOFF = 2.5f; // diameters
+    public static final float SKIN = 0.5f; // diameters
+
+    private static final float MAX_MOVE = 0.1f; // diameters per substep
+    private static final int MAX_SUBSTEPS = 256;
+    private static final float MIN_DISTANCE = 0.8f; // diameters, closer pairs get the force they would have here
+
+    private final float radius;
+    private final float sigma;
+    private final float cutoff2;
+    private final float listRange2;
+    private final float maxShift2;
+    private final float minDistance2;
+
+    private float half;
+    private float t;
+
+    private float wallImpulse;
+
+    private int count;
+    private float[] x = new float[0];
+    private float[] y = new float[0];
+    private float[] vx = new float[0];
+    private float[] vy = new float[0];
+    private float[] fx = new float[0];
+    private float[] fy = new float[0];
+    private float maxForce2;
+    private boolean forcesValid;
+
+    // Neighbours j > i of particle i are neighbours[neighbourStart[i] .. neighbourStart[i + 1])
+    private int[] neighbourStart = new int[1];
+    private int[] neighbours = new int[0];
+    private float[] builtX = new float[0]; // positions the list was built at
+    private float[] builtY = new float[0];
+    private boolean listValid;
+    private int rebuilds;
+
+    // Counting sort of particles by cell for building the list
+    private int cellsPerSide;
+    private float cellSize;
+    private int[] cellStart = new int[1];
+    private int[] cellOf = new int[0];
+    private int[] sorted = new int[0];
+
+    private final Seeder seeder = new Seeder();
+
+    public LennardJonesEngine(float particleRadius) {
+        radius = particleRadius;
+        sigma = particleRadius * 2;
+        cutoff2 = CUTOFF * CUTOFF * sigma * sigma;
+        float listRange = (CUTOFF + SKIN) * sigma;
+        listRange2 = listRange * listRange;
+        maxShift2 = SKIN * sigma / 2 * SKIN * sigma / 2;
+        minDistance2 = MIN_DISTANCE * MIN_DISTANCE * sigma * sigma;
+    }
+
+    @Override
+    public void setWallSize(float size) {
+        half = size / 2;
+
+        float max = Math.max(half - radius, 0);
+        for (int i = 0; i < count; i++) {
+            x[i] = MathUtils.clamp(x[i], -max, max);
+            y[i] = MathUtils.clamp(y[i], -max, max);
+        }
+
+        cellsPerSide = Math.max(1, (int) (half * 2 / ((CUTOFF + SKIN) * sigma)));
+        cellSize = half * 2 / cellsPerSide;
+        if (cellStart.length < cellsPerSide * cellsPerSide + 1) {
+            cellStart = new int[cellsPerSide * cellsPerSide + 1];
+        }
+        listValid = false;
+        forcesValid = false;
+    }
+
+    @Override
+    public void moveWalls(float size, float dt) {
+        if (size / 2 == half) return;
+        float scale = size / 2 / half;
+        for (int i = 0; i < count; i++) {
+            x[i] *= scale;
+            y[i] *= scale;
+        }
+        setWallSize(size);
+    }
+
+    @Override
+    public void setTemperature(float t) {
+        this.t = t;
+    }
+
+    @Override
+    public void setRandom(Random random) {
+        seeder.setRandom(random);
+    }
+
+    @Override
+    public void setParticleCount(int count) {
+        if (count > x.length) {
+            int capacity = Math.max(count, x.length * 2);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            vx = Arrays.copyOf(vx, capacity);
+            vy = Arrays.copyOf(vy, capacity);
+            fx = new float[capacity];
+            fy = new float[capacity];
+            builtX = new float[capacity];
+            builtY = new float[capacity];
+            cellOf = new int[capacity];
+            sorted = new int[capacity];
+            neighbourStart = new int[capacity + 1];
+        }
+
+        seeder.seed(this, this.count, count, half, radius, t);
+        for (int i = this.count; i < count; i++) {
+            int k = i - this.count;
+            x[i] = seeder.x[k];
+            y[i] = seeder.y[k];
+            vx[i] = seeder.vx[k];
+            vy[i] = seeder.vy[k];
+        }
+        this.count = count;
+        listValid = false;
+        forcesValid = false;
+    }
+
+    @Override
+    public int getParticleCount() {
+        return count;
+    }
+
+    @Override
+    public void saveState(ParticleState state) {
+        state.setCount(count);
+        System.arraycopy(x, 0, state.x, 0, count);
+        System.arraycopy(y, 0, state.y, 0, count);
+        System.arraycopy(vx, 0, state.vx, 0, count);
+        System.arraycopy(vy, 0, state.vy, 0, count);
+    }
+
+    @Override
+    public void restoreState(ParticleState state, float scale) {
+        if (state.count != count) setParticleCount(state.count);
+        for (int i = 0; i < count; i++) {
+            x[i] = state.x[i] * scale;
+            y[i] = state.y[i] * scale;
+        }
+        System.arraycopy(state.vx, 0, vx, 0, count);
+        System.arraycopy(state.vy, 0, vy, 0, count);
+        listValid = false;
+        forcesValid = false;
+    }
+
+    @Override
+    public void step(float dt) {
+        if (count == 0) return;
+        if (!forcesValid) updateForces();
+
+        float maxSpeed2 = 0;
+        for (int i = 0; i < count; i++) {
+            maxSpeed2 = Math.max(maxSpeed2, vx[i] * vx[i] + vy[i] * vy[i]);
+        }
+        float move = MAX_MOVE * sigma;
+        float remaining = dt;
+        for (int s = 0; s < MAX_SUBSTEPS && remaining > 0; s++) {
+            // Neither the speed nor the speed picked up along the way may carry a particle further than move
+            float h = remaining;
+            if (maxSpeed2 > 0) h = Math.min(h, move / (float) Math.sqrt(maxSpeed2));
+            if (maxForce2 > 0) h = Math.min(h, (float) Math.sqrt(move / Math.sqrt(maxForce2)));
+            remaining -= h;
+
+            kick(h / 2);
+            wallImpulse += drift(h);
+            updateForces();
+            maxSpeed2 = kick(h / 2);
+        }
+    }
+
+    /**
+     * @return the largest square speed afterwards
+     */
+    private float kick(float h) {
+        float maxSpeed2 = 0;
+        for (int i = 0; i < count; i++) {
+            vx[i] += fx[i] * h;
+            vy[i] += fy[i] * h;
+            maxSpeed2 = Math.max(maxSpeed2, vx[i] * vx[i] + vy[i] * vy[i]);
+        }
+        return maxSpeed2;
+    }
+
+    /**
+     * @return momentum per unit mass the walls took from the particles
+     */
+    private float drift(float h) {
+        float impulse = 0;
+        float max = half - radius;
+        for (int i = 0; i < count; i++) {
+            x[i] += vx[i] * h;
+            y[i] += vy[i] * h;
+
+            if (x[i] > max) {
+                x[i] = 2 * max - x[i];
+                impulse += 2 * Math.abs(vx[i]);
+                vx[i] = -Math.abs(vx[i]);
+            } else if (x[i] < -max) {
+                x[i] = -2 * max - x[i];
+                impulse += 2 * Math.abs(vx[i]);
+                vx[i] = Math.abs(vx[i]);
+            }
+            if (y[i] > max) {
+                y[i] = 2 * max - y[i];
+                impulse += 2 * Math.abs(vy[i]);
+                vy[i] = -Math.abs(vy[i]);
+            } else if (y[i] < -max) {
+                y[i] = -2 * max - y[i];
+                impulse += 2 * Math.abs(vy[i]);
+                vy[i] = Math.abs(vy[i]);
+            }
+            x[i] = MathUtils.clamp(x[i], -max, max);
+            y[i] = MathUtils.clamp(y[i], -max, max);
+        }
+        return impulse;
+    }
+
+    private void updateForces() {
+        if (!listValid || hasMovedTooFar()) buildList();
+
+        Arrays.fill(fx, 0, count, 0);
+        Arrays.fill(fy, 0, count, 0);
+        float sigma2 = sigma * sigma;
+        for (int i = 0; i < count; i++) {
+            float xi = x[i], yi = y[i];
+            float fxi = 0, fyi = 0;
+            for (int k = neighbourStart[i], end = neighbourStart[i + 1]; k < end; k++) {
+                int j = neighbours[k];
+                float dx = x[j] - xi;
+                float dy = y[j] - yi;
+                float r2 = dx * dx + dy * dy;
+                if (r2 >= cutoff2) continue;
+
+                // -dU/dr / r for U = 4 EPSILON ((sigma/r)^12 - (sigma/r)^6), positive pushes apart
+                float s2 = sigma2 / Math.max(r2, minDistance2);
+                float s6 = s2 * s2 * s2;
+                float f = 24 * EPSILON * s6 * (2 * s6 - 1) * s2 / sigma2;
+                fxi -= f * dx;
+                fyi -= f * dy;
+                fx[j] += f * dx;
+                fy[j] += f * dy;
+            }
+            fx[i] += fxi;
+            fy[i] += fyi;
+        }
+        maxForce2 = 0;
+        for (int i = 0; i < count; i++) {
+            maxForce2 = Math.max(maxForce2, fx[i] * fx[i] + fy[i] * fy[i]);
+        }
+        forcesValid = true;
+    }
+
+    private boolean hasMovedTooFar() {
+        for (int i = 0; i < count; i++) {
+            float dx = x[i] - builtX[i];
+            float dy = y[i] - builtY[i];
+            if (dx * dx + dy * dy > maxShift2) return true;
+        }
+        return false;
+    }
+
+    private void buildList() {
+        int cells = cellsPerSide * cellsPerSide;
+        Arrays.fill(cellStart, 0, cells, 0);
+        for (int i = 0; i < count; i++) {
+            int cx = MathUtils.clamp((int) ((x[i] + half) / cellSize), 0, cellsPerSide - 1);
+            int cy = MathUtils.clamp((int) ((y[i] + half) / cellSize), 0, cellsPerSide - 1);
+            int c = cx + cy * cellsPerSide;
+            cellOf[i] = c;
+            cellStart[c]++;
+        }
+        for (int c = 1; c < cells; c++) {
+            cellStart[c] += cellStart[c - 1];
+        }
+        cellStart[cells] = count;
+        for (int i = count - 1; i >= 0; i--) {
+            sorted[--cellStart[cellOf[i]]] = i;
+        }
+
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            neighbourStart[i] = n;
+            builtX[i] = x[i];
+            builtY[i] = y[i];
+            int cx = cellOf[i] % cellsPerSide;
+            int cy = cellOf[i] / cellsPerSide;
+            for (int ny = Math.max(cy - 1, 0); ny <= Math.min(cy + 1, cellsPerSide - 1); ny++) {
+                for (int nx = Math.max(cx - 1, 0); nx <= Math.min(cx + 1, cellsPerSide - 1); nx++) {
+                    int c = nx + ny * cellsPerSide;
+                    for (int l = cellStart[c], end = cellStart[c + 1]; l < end; l++) {
+                        int j = sorted[l];
+                        if (j <= i) continue;
+                        float dx = x[j] - x[i];
+                        float dy = y[j] - y[i];
+                        if (dx * dx + dy * dy >= listRange2) continue;
+                        if (n == neighbours.length) {
+                            neighbours = Arrays.copyOf(neighbours, Math.max(16, n * 2));
+                        }
+                        neighbours[n++] = j;
+                    }
+                }
+            }
+        }
+        neighbourStart[count] = n;
+        listValid = true;
+        rebuilds++;
+    }
+
+    /**
+     * @return how often the neighbour list has been built so far
+     */
+    public int getRebuilds() {
+        return rebuilds;
+    }
+
+    @Override
+    public float getX(int i) {
+        return x[i];
+    }
+
+    @Override
+    public float getY(int i) {
+        return y[i];
+    }
+
+    @Override
+    public float getSpeed2(int i) {
+        return vx[i] * vx[i] + vy[i] * vy[i];
+    }
+
+    @Override
+    public float meanSpeed2() {
+        float vel2 = 0;
+        for (int i = 0; i < count; i++) {
+            vel2 += vx[i] * vx[i] + vy[i] * vy[i];
+        }
+        return vel2 / count;
+    }
+
+    @Override
+    public void scaleVelocities(float scale) {
+        for (int i = 0; i < count; i++) {
+            vx[i] *= scale;
+            vy[i] *= scale;
+        }
+    }
+
+    @Override
+    public float takeWallImpulse() {
+        float impulse = wallImpulse;
+        wallImpulse = 0;
+        return impulse;
+    }
+
+    @Override
+    public void dispose() {
+    }
+
+}
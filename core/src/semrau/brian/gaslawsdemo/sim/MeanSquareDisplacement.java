@@ -0,0 +1,242 @@
+package semrau.brian.gaslawsdemo.sim;
+
+/**
+ * Mean square displacement of the particles over lag times from one step to thousands, and the diffusion coefficient
+ * that follows from it.
+ * <p>
+ * Only the first {@link #TRACERS} particles are followed, which is plenty for the average and keeps the cost of a
+ * step the same however many particles there are. Their displacements are summed up step by step, so a particle
+ * that is put back after escaping the box doesn't count that as moving.
+ * <p>
+ * Lags are kept by a multi-tau correlator: level 0 holds the last {@link #POINTS} positions of every tracer, and each
+ * level above holds averages of two consecutive entries of the level below, so it covers twice the time at the same
+ * resolution relative to its lags. Memory and work per step are fixed by {@link #LEVELS} and {@link #POINTS},
+ * however long the run is.
+ */
+public class MeanSquareDisplacement {
+
+    public static final int TRACERS = 1024;
+    public static final int LEVELS = 12;
+    public static final int POINTS = 16; // entries per level, lags of POINTS / 2 to POINTS - 1 above level 0
+
+    private static final int AVERAGE = 2; // entries of a level averaged into one of the level above
+
+    private int tracers;
+    private float dt;
+
+    // Where each tracer was last step, and how far it has moved since the first
+    private float[] lastX = new float[0];
+    private float[] lastY = new float[0];
+    private float[] ux = new float[0];
+    private float[] uy = new float[0];
+
+    // Per level a ring of POINTS rows of tracer positions, row (level * POINTS + slot) * tracers
+    private float[] historyX = new float[0];
+    private float[] historyY = new float[0];
+    private final int[] head = new int[LEVELS];
+    private final int[] filled = new int[LEVELS];
+
+    // Per level the sum of the entries not yet averaged into the level above
+    private float[] blockX = new float[0];
+    private float[] blockY = new float[0];
+    private final int[] blocked = new int[LEVELS];
+
+    private final double[] sums = new double[LEVELS * POINTS];
+    private final long[] counts = new long[LEVELS * POINTS];
+
+    /**
+     * Forgets everything measured, the next sample starts over from the particles' positions then.
+     */
+    public void clear() {
+        tracers = 0;
+        for (int l = 0; l < LEVELS; l++) {
+            head[l] = 0;
+            filled[l] = 0;
+            blocked[l] = 0;
+        }
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = 0;
+            counts[i] = 0;
+        }
+    }
+
+    /**
+     * Adds the particle positions after a step of length dt.
+     *
+     * @param jump a move this long or longer in one step is a respawn rather than motion
+     */
+    public void sample(ParticleEngine engine, float dt, float jump) {
+        if (tracers == 0) {
+            start(engine, dt);
+            if (tracers == 0) return;
+        }
+
+        float jump2 = jump * jump;
+        for (int i = 0; i < tracers; i++) {
+            float x = engine.getX(i);
+            float y = engine.getY(i);
+            float dx = x - lastX[i];
+            float dy = y - lastY[i];
+            if (dx * dx + dy * dy < jump2) {
+                ux[i] += dx;
+                uy[i] += dy;
+            }
+            lastX[i] = x;
+            lastY[i] = y;
+        }
+        add();
+    }
+
+    private void start(ParticleEngine engine, float dt) {
+        tracers = Math.min(engine.getParticleCount(), TRACERS);
+        this.dt = dt;
+        if (ux.length < tracers) {
+            lastX = new float[tracers];
+            lastY = new float[tracers];
+            ux = new float[tracers];
+            uy = new float[tracers];
+            historyX = new float[LEVELS * POINTS * tracers];
+            historyY = new float[LEVELS * POINTS * tracers];
+            blockX = new float[LEVELS * tracers];
+            blockY = new float[LEVELS * tracers];
+        }
+        for (int i = 0; i < tracers; i++) {
+            lastX[i] = engine.getX(i);
+            lastY[i] = engine.getY(i);
+            ux[i] = 0;
+            uy[i] = 0;
+        }
+        for (int i = 0; i < LEVELS * tracers; i++) {
+            blockX[i] = 0;
+            blockY[i] = 0;
+        }
+    }
+
+    /**
+     * Pushes the current displacements into level 0, and block averages up the levels as they fill.
+     */
+    private void add() {
+        float[] fromX = ux, fromY = uy;
+        int from = 0;
+        float scale = 1;
+        for (int l = 0; l < LEVELS; l++) {
+            int slot = head[l];
+            int row = (l * POINTS + slot) * tracers;
+            for (int i = 0; i < tracers; i++) {
+                historyX[row + i] = fromX[from + i] * scale;
+                historyY[row + i] = fromY[from + i] * scale;
+            }
+            if (l > 0) {
+                // The block below has been passed on, start the next one
+                for (int i = from; i < from + tracers; i++) {
+                    blockX[i] = 0;
+                    blockY[i] = 0;
+                }
+            }
+            if (filled[l] < POINTS) filled[l]++;
+            head[l] = (slot + 1) % POINTS;
+
+            // Shorter lags than POINTS / 2 are covered more finely by the level below
+            for (int j = l == 0 ? 1 : POINTS / AVERAGE; j < filled[l]; j++) {
+                int old = (l * POINTS + (slot - j + POINTS) % POINTS) * tracers;
+                double sum = 0;
+                for (int i = 0; i < tracers; i++) {
+                    float dx = historyX[row + i] - historyX[old + i];
+                    float dy = historyY[row + i] - historyY[old + i];
+                    sum += dx * dx + dy * dy;
+                }
+                sums[l * POINTS + j] += sum / tracers;
+                counts[l * POINTS + j]++;
+            }
+
+            if (l + 1 == LEVELS) break;
+            int block = l * tracers;
+            for (int i = 0; i < tracers; i++) {
+                blockX[block + i] += historyX[row + i];
+                blockY[block + i] += historyY[row + i];
+            }
+            if (++blocked[l] < AVERAGE) break;
+            blocked[l] = 0;
+            fromX = blockX;
+            fromY = blockY;
+            from = block;
+            scale = 1.0f / AVERAGE;
+        }
+    }
+
+    /**
+     * @return how many lags {@link #getLag(int)} and {@link #get(int)} go through, shortest first
+     */
+    public int getLags() {
+        return (POINTS - 1) + (LEVELS - 1) * (POINTS - POINTS / AVERAGE);
+    }
+
+    /**
+     * @return the lag in seconds
+     */
+    public float getLag(int k) {
+        int index = index(k);
+        return (index % POINTS) * (1 << (index / POINTS)) * dt;
+    }
+
+    /**
+     * @return mean square displacement over the lag, or NaN while the run is shorter than the lag
+     */
+    public float get(int k) {
+        int index = index(k);
+        return counts[index] == 0 ? Float.NaN : (float) (sums[index] / counts[index]);
+    }
+
+    private static int index(int k) {
+        if (k < POINTS - 1) return k + 1;
+        k -= POINTS - 1;
+        int perLevel = POINTS - POINTS / AVERAGE;
+        return (1 + k / perLevel) * POINTS + POINTS / AVERAGE + k % perLevel;
+    }
+
+    /**
+     * In 2D the mean square displacement grows as 4 D lag once particles have collided often enough to forget
+     * their direction, but the box here is only a few mean free paths across, so the walls hold it back before that
+     * part of the curve is reached. Instead D comes from the last lag before the root mean square displacement
+     * reaches limit, assuming velocities decorrelate exponentially over a time c as they do in a dilute gas:
+     * msd = 2 meanSpeed2 c (lag - c (1 - exp(-lag / c))), which is ballistic for short lags and diffusive with
+     * D = meanSpeed2 c / 2 for long ones.
+     *
+     * @param meanSpeed2 mean square speed of the particles, the temperature of the simulation
+     * @return diffusion coefficient in box units squared per second, 0 until measured
+     */
+    public float diffusionCoefficient(float limit, float meanSpeed2) {
+        float limit2 = limit * limit;
+        float lag = 0, msd = 0;
+        for (int k = 0; k < getLags(); k++) {
+            float m = get(k);
+            if (Float.isNaN(m) || m > limit2) break;
+            lag = getLag(k);
+            msd = m;
+        }
+        if (msd <= 0 || meanSpeed2 <= 0) return 0;
+        // Quicker than ballistic can only be noise
+        if (msd >= meanSpeed2 * lag * lag) return 0;
+
+        // msd rises with c, so halve the bracket until it pins c down
+        float low = 0, high = lag;
+        while (ornsteinUhlenbeck(lag, high, meanSpeed2) < msd) {
+            low = high;
+            high *= 2;
+        }
+        for (int i = 0; i < 40; i++) {
+            float c = (low + high) / 2;
+            if (ornsteinUhlenbeck(lag, c, meanSpeed2) < msd) {
+                low = c;
+            } else {
+                high = c;
+            }
+        }
+        return meanSpeed2 * (low + high) / 4;
+    }
+
+    private static float ornsteinUhlenbeck(float lag, float c, float meanSpeed2) {
+        return 2 * meanSpeed2 * c * (lag - c * (1 - (float) Math.exp(-lag / c)));
+    }
+
+}
@@ -0,0 +1,81 @@
+package semrau.brian.gaslawsdemo.sim;
+
+import java.util.Random;
+
+/**
+ * Moves the gas particles around inside a square box centred on the origin.
+ * <p>
+ * The demo only tells an engine how big the box is, how many particles it holds and what temperature new particles
+ * should start at. Everything else (thermostat, rendering) goes through the accessors below.
+ */
+public interface ParticleEngine {
+
+    /**
+     * @param size inner width of the box, walls sit at +-size/2
+     */
+    void setWallSize(float size);
+
+    /**
+     * Moves the walls so they reach size at the end of the next step of length dt, taking the particles along
+     * instead of leaving them outside.
+     */
+    void moveWalls(float size, float dt);
+
+    /**
+     * Sets the temperature used for the starting speed of newly spawned particles.
+     */
+    void setTemperature(float t);
+
+    /**
+     * Draws the positions and velocities of new particles from random instead of the shared
+     * {@link com.badlogic.gdx.math.MathUtils#random}, which isn't safe to share between threads.
+     */
+    void setRandom(Random random);
+
+    /**
+     * Grows or shrinks the population to exactly count particles.
+     */
+    void setParticleCount(int count);
+
+    int getParticleCount();
+
+    void step(float dt);
+
+    float getX(int i);
+
+    float getY(int i);
+
+    float getSpeed2(int i);
+
+    float meanSpeed2();
+
+    /**
+     * Multiplies every particle velocity by scale.
+     */
+    void scaleVelocities(float scale);
+
+    /**
+     * @return momentum per unit particle mass the walls have taken from the particles since the last call
+     */
+    float takeWallImpulse();
+
+    /**
+     * Copies the positions and velocities of all particles into state.
+     */
+    void saveState(ParticleState state);
+
+    /**
+     * Replaces all particles with the ones in state, their positions multiplied by scale. The walls have to be set
+     * to the size the scaled positions fit.
+     */
+    void restoreState(ParticleState state, float scale);
+
+    void dispose();
+
+    interface Factory {
+
+        ParticleEngine create(float particleRadius, float wallThickness);
+
+    }
+
+}
@@ -0,0 +1,49 @@
+package semrau.brian.gaslawsdemo.sim;
+
+/**
+ * Picks how many particles stand for one mol so stepping and drawing fit in their time budget on whatever machine
+ * runs the demo.
+ * <p>
+ * It is fed the median step and frame times once in a while. The load is the larger of step time over the step
+ * period and frame time over the frame budget. Above {@link #HIGH_LOAD} the particle count shrinks in proportion,
+ * below {@link #LOW_LOAD} it grows by a quarter, so a weak machine backs off quickly and a strong one fills up over a
+ * few seconds without oscillating.
+ */
+public class ParticleGovernor {
+
+    public static final float TARGET_LOAD = 0.6f;
+    public static final float HIGH_LOAD = 0.8f;
+    public static final float LOW_LOAD = 0.4f;
+
+    private final int minParticlesPerMole;
+    private final int maxParticlesPerMole;
+
+    public ParticleGovernor(int minParticlesPerMole, int maxParticlesPerMole) {
+        this.minParticlesPerMole = minParticlesPerMole;
+        this.maxParticlesPerMole = maxParticlesPerMole;
+    }
+
+    /**
+     * @param stepTime    typical time one step took, in seconds
+     * @param stepPeriod  time between steps, in seconds
+     * @param frameTime   typical time one frame took, in seconds
+     * @param frameBudget time a frame may take, in seconds
+     * @return the new number of particles per mol, or the current one if it should stay
+     */
+    public int adjust(int particlesPerMole, float stepTime, float stepPeriod, float frameTime, float frameBudget) {
+        float load = Math.max(stepTime / stepPeriod, frameTime / frameBudget);
+
+        float factor;
+        if (load > HIGH_LOAD) {
+            factor = Math.max(TARGET_LOAD / load, 0.5f);
+        } else if (load < LOW_LOAD) {
+            factor = 1.25f;
+        } else {
+            return particlesPerMole;
+        }
+
+        int adjusted = Math.round(particlesPerMole * factor);
+        return Math.max(minParticlesPerMole, Math.min(adjusted, maxParticlesPerMole));
+    }
+
+}
@@ -0,0 +1,39 @@
+package semrau.brian.gaslawsdemo.sim;
+
+/**
+ * Positions and velocities of all particles, for putting a simulation back the way it was.
+ */
+public class ParticleState {
+
+    public float[] x = new float[0];
+    public float[] y = new float[0];
+    public float[] vx = new float[0];
+    public float[] vy = new float[0];
+    public int count;
+
+    /**
+     * Box width the positions belong to
+     */
+    public float wallSize;
+
+    /**
+     * Sets the particle count, growing the arrays if needed. Their contents are left as they are.
+     */
+    public void setCount(int count) {
+        this.count = count;
+        if (x.length < count) {
+            x = new float[count];
+            y = new float[count];
+            vx = new float[count];
+            vy = new float[count];
+        }
+    }
+
+    /**
+     * @return roughly how much memory the state takes
+     */
+    public long bytes() {
+        return 4L * 4 * x.length;
+    }
+
+}
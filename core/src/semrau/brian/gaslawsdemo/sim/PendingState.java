@@ -0,0 +1,53 @@
+package semrau.brian.gaslawsdemo.sim;
+
+/**
+ * Changes to the gas collected between two steps, so a slider drag that fires many events per frame costs at most
+ * one rebuild per step.
+ * <p>
+ * Only the last value of each setting counts and only settings that changed are applied, the amount of gas last so
+ * new particles get the new temperature. They are seeded into the box where its walls are: the new one with the
+ * piston off, and with it on the one the walls are still moving from, which then carry the particles along. Setters
+ * only take this object's lock, never the simulation's, so the GUI thread never waits for a step.
+ */
+public class PendingState {
+
+    private float v, t, n;
+    private int particlesPerMole;
+    private boolean volume, temperature, moles, resolution;
+
+    public synchronized void setVolume(float v) {
+        this.v = v;
+        volume = true;
+    }
+
+    public synchronized void setTemperature(float t) {
+        this.t = t;
+        temperature = true;
+    }
+
+    public synchronized void setMoles(float n) {
+        this.n = n;
+        moles = true;
+    }
+
+    public synchronized void setParticlesPerMole(int particlesPerMole) {
+        this.particlesPerMole = particlesPerMole;
+        resolution = true;
+    }
+
+    /**
+     * Applies whatever changed since the last call.
+     */
+    synchronized void applyTo(GasSimulation sim) {
+        if (volume && v != sim.getVolume()) sim.setVolume(v);
+        if (temperature && t != sim.getTemperature()) sim.setTemperature(t);
+        if (moles || resolution) {
+            float n = moles ? this.n : sim.getMoles();
+            int particlesPerMole = resolution ? this.particlesPerMole : sim.getParticlesPerMole();
+            if (n != sim.getMoles() || particlesPerMole != sim.getParticlesPerMole())
+                sim.setMoles(n, particlesPerMole);
+        }
+        volume = temperature = moles = resolution = false;
+    }
+
+}
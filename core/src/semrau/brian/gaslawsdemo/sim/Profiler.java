@@ -0,0 +1,131 @@
+package semrau.brian.gaslawsdemo.sim;
+
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.TimeUtils;
+
+/**
+ * Times the phases of each frame into fixed histograms, so it can stay on all the time without allocating.
+ * <p>
+ * Buckets are a quarter octave of microseconds wide, which keeps percentiles within about 20% across anything from a
+ * microsecond to minutes. Phases may nest: the escape check is part of the engine step.
+ * <p>
+ * Each phase is timed by one thread, but not all by the same one: with the simulation on its own thread, its phases
+ * are recorded there while the render thread reads and clears the histograms. Everything but {@link #begin} is
+ * synchronized for that, and begin only touches the start time of its own phase.
+ */
+public class Profiler implements Disposable {
+
+    public static final int ESCAPE = 0;
+    public static final int THERMOSTAT = 1;
+    public static final int STEP = 2;
+    public static final int PARTICLES = 3;
+    public static final int UI = 4;
+    public static final int FRAME = 5;
+    public static final String[] PHASE_NAMES = {"escape", "thermostat", "step", "particles", "ui", "frame"};
+
+    private static final int BUCKETS = 4 * 32;
+
+    private final int[][] histograms = new int[PHASE_NAMES.length][BUCKETS];
+    private final int[] samples = new int[PHASE_NAMES.length];
+    private final long[] start = new long[PHASE_NAMES.length];
+    private final long[] last = new long[PHASE_NAMES.length];
+    private final long[] frame = new long[PHASE_NAMES.length]; // the last frame's times, handed to the listener
+
+    private Listener listener;
+
+    /**
+     * Gets told about every finished frame, for example to log the timings. It is called outside the lock, so it
+     * may take its time without holding up the simulation thread.
+     */
+    public interface Listener extends Disposable {
+        /**
+         * @param micros microseconds spent in each phase during the frame, only valid until this returns
+         */
+        void frame(long[] micros);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void begin(int phase) {
+        start[phase] = TimeUtils.nanoTime();
+    }
+
+    public synchronized void end(int phase) {
+        long micros = (TimeUtils.nanoTime() - start[phase]) / 1000;
+        last[phase] += micros;
+        histograms[phase][bucket(micros)]++;
+        samples[phase]++;
+    }
+
+    /**
+     * Hands the frame to the listener and starts the next one. Only the render thread may call this.
+     */
+    public void endFrame() {
+        synchronized (this) {
+            for (int i = 0; i < last.length; i++) {
+                frame[i] = last[i];
+                last[i] = 0;
+            }
+        }
+        if (listener != null) listener.frame(frame);
+    }
+
+    /**
+     * @return microseconds spent in the phase during the current frame
+     */
+    public synchronized long getLast(int phase) {
+        return last[phase];
+    }
+
+    /**
+     * @param q quantile between 0 and 1
+     * @return upper bound in microseconds of the bucket holding that quantile of the samples since the last clear
+     */
+    public synchronized long percentile(int phase, float q) {
+        int[] histogram = histograms[phase];
+        int rank = (int) Math.ceil(q * samples[phase]);
+        int seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= rank && seen > 0) return lowerBound(i + 1);
+        }
+        return 0;
+    }
+
+    public synchronized int getSamples(int phase) {
+        return samples[phase];
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < histograms.length; i++) {
+            int[] histogram = histograms[i];
+            for (int j = 0; j < BUCKETS; j++) {
+                histogram[j] = 0;
+            }
+            samples[i] = 0;
+        }
+    }
+
+    private static int bucket(long micros) {
+        if (micros < 4) return (int) Math.max(micros, 0);
+        if (micros >= Integer.MAX_VALUE) return BUCKETS - 1;
+        int octave = 31 - Integer.numberOfLeadingZeros((int) micros);
+        int quarter = (int) (micros >> (octave - 2)) & 3;
+        return Math.min(octave * 4 + quarter, BUCKETS - 1);
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < 4) return bucket;
+        if (bucket <= 8) return 4; // buckets 4 to 7 stay empty
+        int octave = bucket / 4;
+        return (long) (4 + bucket % 4) << (octave - 2);
+    }
+
+    @Override
+    public void dispose() {
+        if (listener != null) listener.dispose();
+    }
+
+}
@@ -0,0 +1,56 @@
+package semrau.brian.gaslawsdemo.sim;
+
+/**
+ * Fixed-size ring buffer of the most recent float samples. Adding never allocates; mean and variance are computed
+ * over whatever the window currently holds.
+ */
+public class SampleWindow {
+
+    private final float[] samples;
+    private int head;
+    private int size;
+
+    public SampleWindow(int capacity) {
+        samples = new float[capacity];
+    }
+
+    public void add(float sample) {
+        samples[head] = sample;
+        head = (head + 1) % samples.length;
+        if (size < samples.length) size++;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return samples.length;
+    }
+
+    public float mean() {
+        if (size == 0) return 0;
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += samples[i];
+        }
+        return (float) (sum / size);
+    }
+
+    public float variance() {
+        if (size < 2) return 0;
+        double mean = mean();
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            double d = samples[i] - mean;
+            sum += d * d;
+        }
+        return (float) (sum / (size - 1));
+    }
+
+}
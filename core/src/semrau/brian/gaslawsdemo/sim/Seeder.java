@@ -0,0 +1,159 @@
+package semrau.brian.gaslawsdemo.sim;
+
+import com.badlogic.gdx.math.MathUtils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Places new particles without overlaps and gives them Maxwell-Boltzmann velocities, so a fresh gas starts out close
+ * to equilibrium instead of relaxing from piled up particles that all share one speed.
+ * <p>
+ * An empty box is filled on a jittered square lattice: sites are spread evenly over the box and every particle is
+ * shaken around its site by no more than keeps it clear of the neighbouring sites. Particles added to a box that
+ * already holds some are placed by dart throwing against a grid of cells one diameter wide, which only has to check
+ * the 3x3 cells around each try. Both are O(N). When the box is too full for a free spot the last try is kept.
+ * <p>
+ * Results are left in {@link #x}, {@link #y}, {@link #vx} and {@link #vy}, indexed from 0 for the first new particle.
+ * The buffers are reused between calls.
+ */
+public class Seeder {
+
+    private static final int TRIES = 20;
+
+    public float[] x = new float[0];
+    public float[] y = new float[0];
+    public float[] vx = new float[0];
+    public float[] vy = new float[0];
+
+    // Everything placed so far, existing particles first, linked into grid cells
+    private float[] px = new float[0];
+    private float[] py = new float[0];
+    private int[] next = new int[0];
+    private int[] cellHead = new int[0];
+    private int cellsPerSide;
+    private float cellSize;
+
+    private Random random = MathUtils.random;
+
+    /**
+     * Draws from random from now on instead of the shared {@link MathUtils#random}.
+     */
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Seeds particles from up to (but not including) to, next to the from particles the engine already holds.
+     *
+     * @param half   half the inner box width
+     * @param radius particle radius
+     * @param t      temperature, the mean square speed of the new particles
+     */
+    public void seed(ParticleEngine engine, int from, int to, float half, float radius, float t) {
+        int added = to - from;
+        if (added <= 0) return;
+        if (x.length < added) {
+            int capacity = Math.max(added, x.length * 2);
+            x = new float[capacity];
+            y = new float[capacity];
+            vx = new float[capacity];
+            vy = new float[capacity];
+        }
+
+        float max = Math.max(half - radius, 0);
+        if (from == 0) {
+            lattice(added, max, radius);
+        } else {
+            scatter(engine, from, to, max, radius);
+        }
+
+        // Each velocity component of a unit mass particle is normal with variance kT, here t / 2
+        float sigma = (float) Math.sqrt(t / 2);
+        for (int i = 0; i < added; i++) {
+            vx[i] = (float) random.nextGaussian() * sigma;
+            vy[i] = (float) random.nextGaussian() * sigma;
+        }
+    }
+
+    private void lattice(int count, float max, float radius) {
+        int side = (int) Math.ceil(Math.sqrt(count));
+        int sites = side * side;
+        float spacing = max * 2 / side;
+        float jitter = Math.max(spacing / 2 - radius, 0);
+        for (int i = 0; i < count; i++) {
+            // Spread the particles evenly over the sites when there are more sites than particles
+            int site = (int) ((long) i * sites / count);
+            int sx = site % side;
+            int sy = site / side;
+            x[i] = -max + spacing * (sx + 0.5f) + random(-jitter, jitter);
+            y[i] = -max + spacing * (sy + 0.5f) + random(-jitter, jitter);
+        }
+    }
+
+    private void scatter(ParticleEngine engine, int from, int to, float max, float radius) {
+        float diameter = radius * 2;
+        cellsPerSide = Math.max(1, (int) (max * 2 / diameter));
+        cellSize = max * 2 / cellsPerSide;
+        int cells = cellsPerSide * cellsPerSide;
+        if (cellHead.length < cells) {
+            cellHead = new int[cells];
+        }
+        Arrays.fill(cellHead, 0, cells, -1);
+        if (px.length < to) {
+            int capacity = Math.max(to, px.length * 2);
+            px = new float[capacity];
+            py = new float[capacity];
+            next = new int[capacity];
+        }
+
+        for (int i = 0; i < from; i++) {
+            insert(i, engine.getX(i), engine.getY(i), max);
+        }
+
+        float diameter2 = diameter * diameter;
+        for (int i = from; i < to; i++) {
+            float cx = 0, cy = 0;
+            for (int tries = 0; tries < TRIES; tries++) {
+                cx = random(-max, max);
+                cy = random(-max, max);
+                if (isFree(cx, cy, max, diameter2)) break;
+            }
+            insert(i, cx, cy, max);
+            x[i - from] = cx;
+            y[i - from] = cy;
+        }
+    }
+
+    private float random(float min, float max) {
+        return min + random.nextFloat() * (max - min);
+    }
+
+    private int cell(float p, float max) {
+        return MathUtils.clamp((int) ((p + max) / cellSize), 0, cellsPerSide - 1);
+    }
+
+    private void insert(int i, float x, float y, float max) {
+        px[i] = x;
+        py[i] = y;
+        int c = cell(y, max) * cellsPerSide + cell(x, max);
+        next[i] = cellHead[c];
+        cellHead[c] = i;
+    }
+
+    private boolean isFree(float x, float y, float max, float diameter2) {
+        int cx = cell(x, max);
+        int cy = cell(y, max);
+        for (int ny = Math.max(cy - 1, 0); ny <= Math.min(cy + 1, cellsPerSide - 1); ny++) {
+            for (int nx = Math.max(cx - 1, 0); nx <= Math.min(cx + 1, cellsPerSide - 1); nx++) {
+                for (int j = cellHead[ny * cellsPerSide + nx]; j != -1; j = next[j]) {
+                    float dx = px[j] - x;
+                    float dy = py[j] - y;
+                    if (dx * dx + dy * dy < diameter2) return false;
+                }
+            }
+        }
+        return true;
+    }
+
+}
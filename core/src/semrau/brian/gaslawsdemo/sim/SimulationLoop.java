@@ -0,0 +1,144 @@
+package semrau.brian.gaslawsdemo.sim;
+
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.TimeUtils;
+
+/**
+ * Steps a {@link GasSimulation} at a fixed rate no matter how often it is advanced, and publishes a
+ * {@link Snapshot} after every step.
+ * <p>
+ * Elapsed time piles up in an accumulator that is paid off in whole steps. When a hitch leaves more than
+ * {@link #MAX_SUBSTEPS} steps to catch up, the rest is dropped so a slow machine falls behind real time instead of
+ * spiralling. Each snapshot is stamped with the moment its step stands for, which lets the renderer interpolate
+ * between the last two steps whether the loop runs on the render thread or its own.
+ * <p>
+ * Other threads change the simulation through its {@link GasSimulation#getPending() pending state}, which it applies
+ * at the start of the next step. Anything else touching the simulation has to synchronize on it, the loop holds that
+ * lock for each step.
+ */
+public class SimulationLoop {
+
+    public static final int MAX_SUBSTEPS = 5;
+
+    private final GasSimulation sim;
+    private final float stepTime;
+    private final SnapshotBuffer snapshots = new SnapshotBuffer();
+    private final SpeedHistogram speeds = new SpeedHistogram();
+    private float accumulator;
+    private Recorder recorder;
+
+    /**
+     * Drives a loop from somewhere other than the render thread.
+     */
+    public interface Runner {
+        void start(SimulationLoop loop);
+
+        /**
+         * Returns once the loop will not be advanced any more.
+         */
+        void stop();
+    }
+
+    /**
+     * Gets every step's snapshot on the thread that advances the loop.
+     */
+    public interface Recorder extends Disposable {
+        void record(Snapshot snapshot);
+    }
+
+    /**
+     * A runner that replays snapshots instead of stepping the simulation.
+     */
+    public interface Playback extends Runner {
+        int getStepCount();
+
+        int getStep();
+
+        /**
+         * Continues playing from the given step.
+         */
+        void seek(int step);
+    }
+
+    /**
+     * A runner that shows a simulation running somewhere else, which it can ask to change.
+     */
+    public interface Remote extends Runner {
+        /**
+         * Asks the remote simulation to move to this state. Snapshots show it once the remote side has applied it.
+         */
+        void request(float v, float t, float n);
+    }
+
+    public SimulationLoop(GasSimulation sim, float stepTime) {
+        this.sim = sim;
+        this.stepTime = stepTime;
+
+        synchronized (sim) {
+            snapshots.getBack().capture(sim, speeds, TimeUtils.nanoTime());
+        }
+        snapshots.publish();
+    }
+
+    /**
+     * Set before the loop is advanced from another thread.
+     */
+    public void setRecorder(Recorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public GasSimulation getSimulation() {
+        return sim;
+    }
+
+    public float getStepTime() {
+        return stepTime;
+    }
+
+    public SnapshotBuffer getSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * The histogram binned and smoothed with every snapshot. Set its range before the loop is advanced from another
+     * thread.
+     */
+    public SpeedHistogram getSpeeds() {
+        return speeds;
+    }
+
+    /**
+     * Adds real time that has passed and runs all steps that are due.
+     */
+    public void advance(float delta) {
+        long now = TimeUtils.nanoTime();
+        accumulator += delta;
+
+        int steps = 0;
+        while (accumulator >= stepTime) {
+            if (steps == MAX_SUBSTEPS) {
+                accumulator = 0;
+                break;
+            }
+            accumulator -= stepTime;
+            steps++;
+
+            Snapshot back = snapshots.getBack();
+            synchronized (sim) {
+                sim.step(stepTime);
+                // The step catches the simulation up to what was due before the time still left over
+                back.capture(sim, speeds, now - (long) (accumulator * 1000000000L));
+            }
+            if (recorder != null) recorder.record(back);
+            snapshots.publish();
+        }
+    }
+
+    /**
+     * @return real time in seconds until the next step is due
+     */
+    public float timeToNextStep() {
+        return stepTime - accumulator;
+    }
+
+}
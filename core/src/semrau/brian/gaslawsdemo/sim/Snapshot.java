@@ -0,0 +1,87 @@
+package semrau.brian.gaslawsdemo.sim;
+
+/**
+ * Copy of everything the renderer needs from one simulation step, so drawing never has to touch the engine.
+ */
+public class Snapshot {
+
+    public float[] x = new float[0];
+    public float[] y = new float[0];
+    public float[] speed2 = new float[0];
+    public int count;
+
+    public float wallSize;
+    public float pressureMean;
+    public float pressureDeviation;
+    public float idealPressure;
+    public float volume;
+    public float temperature;
+    public float moles;
+
+    /**
+     * Diffusion coefficient in box units squared per second, 0 while not measured
+     */
+    public float diffusion;
+
+    /**
+     * Smoothed fraction of particles per {@link SpeedHistogram} bin
+     */
+    public final float[] speeds = new float[SpeedHistogram.BINS];
+
+    /**
+     * {@link GasSimulation#getGeneration()} of this step, particles of snapshots with different generations don't
+     * match up by index
+     */
+    public int generation;
+
+    /**
+     * Nano time this step represents, see {@link SimulationLoop#advance(float)}
+     */
+    public long stamp;
+
+    /**
+     * Sets the particle count, growing the arrays if needed. Their contents are left as they are.
+     */
+    public void setCount(int count) {
+        this.count = count;
+        if (x.length < count) {
+            int capacity = Math.max(count, x.length * 2);
+            x = new float[capacity];
+            y = new float[capacity];
+            speed2 = new float[capacity];
+        }
+    }
+
+    /**
+     * Copies the simulation and bins the speeds into the histogram on the way, so it costs no extra pass. The engines
+     * have no last pass over every particle to bin them in instead: speeds change until the last collision of the
+     * step, the parallel engine would need a histogram per worker, and Box2D's is the gather this copy reads from.
+     */
+    void capture(GasSimulation sim, SpeedHistogram histogram, long stamp) {
+        ParticleEngine engine = sim.getEngine();
+        setCount(engine.getParticleCount());
+        for (int i = 0; i < count; i++) {
+            x[i] = engine.getX(i);
+            y[i] = engine.getY(i);
+            speed2[i] = engine.getSpeed2(i);
+            histogram.add(speed2[i]);
+        }
+        histogram.finish();
+        for (int i = 0; i < SpeedHistogram.BINS; i++) {
+            speeds[i] = histogram.getFraction(i);
+        }
+
+        wallSize = sim.getWallSize();
+        SampleWindow pressure = sim.getMeasuredPressure();
+        pressureMean = pressure.mean();
+        pressureDeviation = (float) Math.sqrt(pressure.variance());
+        idealPressure = sim.idealPressure();
+        volume = sim.getVolume();
+        temperature = sim.getTemperature();
+        moles = sim.getMoles();
+        generation = sim.getGeneration();
+        diffusion = sim.diffusionCoefficient();
+        this.stamp = stamp;
+    }
+
+}
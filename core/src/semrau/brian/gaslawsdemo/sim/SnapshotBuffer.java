@@ -0,0 +1,62 @@
+package semrau.brian.gaslawsdemo.sim;
+
+/**
+ * Hands snapshots from the stepping side to the rendering side without either waiting on the other's work.
+ * <p>
+ * There are four snapshots. The writer owns the back one, the reader owns the current one and the one before it to
+ * interpolate between, and the newest finished one waits in between. Publishing and acquiring only swap references
+ * under the lock, so the simulation never waits for a frame to be drawn and drawing never waits for a step.
+ */
+public class SnapshotBuffer {
+
+    private Snapshot back = new Snapshot();
+    private Snapshot ready = new Snapshot();
+    private Snapshot current = new Snapshot();
+    private Snapshot previous = new Snapshot();
+    private boolean fresh;
+
+    /**
+     * @return the snapshot the writer fills before calling {@link #publish()}
+     */
+    public Snapshot getBack() {
+        return back;
+    }
+
+    public synchronized void publish() {
+        Snapshot published = back;
+        back = ready;
+        ready = published;
+        fresh = true;
+    }
+
+    /**
+     * Makes the newest published snapshot current, if there is one, and the old current one previous.
+     */
+    public synchronized void acquire() {
+        if (!fresh) return;
+        Snapshot released = previous;
+        previous = current;
+        current = ready;
+        ready = released;
+        fresh = false;
+    }
+
+    public Snapshot getCurrent() {
+        return current;
+    }
+
+    public Snapshot getPrevious() {
+        return previous;
+    }
+
+    /**
+     * @return how far the given time lies from the previous to the current snapshot, between 0 and 1
+     */
+    public float alpha(long stamp) {
+        long span = current.stamp - previous.stamp;
+        if (span <= 0) return 1;
+        float alpha = (float) (stamp - previous.stamp) / span;
+        return Math.max(0, Math.min(1, alpha));
+    }
+
+}
@@ -0,0 +1,76 @@
+package semrau.brian.gaslawsdemo.sim;
+
+/**
+ * Distribution of particle speeds, binned while the particles are read out each step and smoothed over steps.
+ * <p>
+ * Bins hold the fraction of particles rather than counts, so the smoothing isn't thrown off when particles are added
+ * or removed. For comparison {@link #expected(int, float)} gives the 2D Maxwell-Boltzmann fraction of each bin.
+ */
+public class SpeedHistogram {
+
+    public static final int BINS = 64;
+
+    private static final float SMOOTHING = 0.1f; // weight of the newest step
+
+    private final int[] counts = new int[BINS];
+    private final float[] fractions = new float[BINS];
+    private float range = 1;
+    private float binsPerSpeed = BINS;
+    private boolean empty = true;
+
+    /**
+     * @param range speed at the top of the last bin, faster particles are counted in the last bin
+     */
+    public void setRange(float range) {
+        this.range = range;
+        binsPerSpeed = BINS / range;
+        empty = true;
+    }
+
+    public float getRange() {
+        return range;
+    }
+
+    public void add(float speed2) {
+        int bin = (int) ((float) Math.sqrt(speed2) * binsPerSpeed);
+        counts[bin < BINS ? bin : BINS - 1]++;
+    }
+
+    /**
+     * Folds the speeds added since the last call into the smoothed fractions and starts over.
+     */
+    public void finish() {
+        int total = 0;
+        for (int i = 0; i < BINS; i++) {
+            total += counts[i];
+        }
+        if (total == 0) return;
+
+        float weight = empty ? 1 : SMOOTHING;
+        for (int i = 0; i < BINS; i++) {
+            fractions[i] += ((float) counts[i] / total - fractions[i]) * weight;
+            counts[i] = 0;
+        }
+        empty = false;
+    }
+
+    /**
+     * @return smoothed fraction of particles in the bin
+     */
+    public float getFraction(int bin) {
+        return fractions[bin];
+    }
+
+    /**
+     * With the mean square speed held at t, unit mass particles in 2D have speeds distributed as
+     * f(v) = 2v/t exp(-v^2/t), so the fraction below v is 1 - exp(-v^2/t).
+     *
+     * @return fraction of particles the bin should hold at temperature t
+     */
+    public float expected(int bin, float t) {
+        float from = bin / binsPerSpeed;
+        float to = bin == BINS - 1 ? Float.POSITIVE_INFINITY : (bin + 1) / binsPerSpeed;
+        return (float) (Math.exp(-from * from / t) - Math.exp(-to * to / t));
+    }
+
+}
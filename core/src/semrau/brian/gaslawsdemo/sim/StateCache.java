@@ -0,0 +1,76 @@
+package semrau.brian.gaslawsdemo.sim;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Equilibrated particle states by amount of gas, volume and temperature, so going back to a state the gas was in
+ * before is a copy instead of many steps of thermostat.
+ * <p>
+ * Amount is bucketed to a hundredth of a mol, volume to half a litre and temperature to 5 K. Restoring scales the
+ * positions to the exact volume and the thermostat takes care of the temperature within a step. The key leaves out
+ * how many particles stand for a mol, so a state saved before the particle count changed still restores: surplus
+ * particles are dropped and missing ones seeded fresh, which a uniform gas hardly notices. The least recently used states are dropped once the
+ * cache grows past its memory cap. Access is synchronized so other threads can fill the cache in the background.
+ */
+public class StateCache {
+
+    private final long capacity;
+    private long bytes;
+    private final LinkedHashMap<Long, ParticleState> states = new LinkedHashMap<Long, ParticleState>(16, 0.75f, true);
+
+    /**
+     * @param capacity bytes of particle data to keep at most
+     */
+    public StateCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    public static long key(float n, float v, float t) {
+        long amount = Math.round(n * 100);
+        long volume = Math.round(v * 2);
+        long temperature = Math.round(t / 5);
+        return (amount << 32) | (volume << 16) | temperature;
+    }
+
+    public synchronized boolean contains(long key) {
+        return states.containsKey(key);
+    }
+
+    /**
+     * Puts the engine back into the state saved under key, if there is one.
+     *
+     * @param wallSize box width the engine's walls are already set to
+     * @param count    particles the engine should have, whatever the state was saved with
+     * @return whether the state was found
+     */
+    public synchronized boolean restore(long key, ParticleEngine engine, float wallSize, int count) {
+        ParticleState state = states.get(key);
+        if (state == null) return false;
+        engine.restoreState(state, wallSize / state.wallSize);
+        if (state.count != count) engine.setParticleCount(count);
+        return true;
+    }
+
+    public synchronized void save(long key, ParticleEngine engine, float wallSize) {
+        ParticleState state = states.remove(key);
+        if (state != null) {
+            bytes -= state.bytes();
+        } else {
+            state = new ParticleState();
+        }
+        engine.saveState(state);
+        state.wallSize = wallSize;
+        states.put(key, state);
+        bytes += state.bytes();
+
+        // Drop least recently used states, but always keep the newest
+        Iterator<Map.Entry<Long, ParticleState>> eldest = states.entrySet().iterator();
+        while (bytes > capacity && states.size() > 1) {
+            bytes -= eldest.next().getValue().bytes();
+            eldest.remove();
+        }
+    }
+
+}
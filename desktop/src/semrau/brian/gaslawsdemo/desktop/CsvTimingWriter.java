@@ -0,0 +1,56 @@
+package semrau.brian.gaslawsdemo.desktop;
+
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import semrau.brian.gaslawsdemo.sim.Profiler;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the phase timings of every frame as one CSV row, in microseconds.
+ */
+public class CsvTimingWriter implements Profiler.Listener {
+
+    private final Writer out;
+    private long frame;
+
+    public CsvTimingWriter(String path) {
+        try {
+            out = new BufferedWriter(new FileWriter(path));
+            out.write("frame");
+            for (String phase : Profiler.PHASE_NAMES) {
+                out.write(',');
+                out.write(phase);
+            }
+            out.write('\n');
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't open timing file " + path, e);
+        }
+    }
+
+    @Override
+    public void frame(long[] micros) {
+        try {
+            out.write(Long.toString(frame++));
+            for (long phase : micros) {
+                out.write(',');
+                out.write(Long.toString(phase));
+            }
+            out.write('\n');
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't write timings", e);
+        }
+    }
+
+    @Override
+    public void dispose() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't close timing file", e);
+        }
+    }
+
+}
@@ -2,15 +2,102 @@ package semrau.brian.gaslawsdemo.desktop;
 
 import com.badlogic.gdx.backends.lwjgl.LwjglApplication;
 import com.badlogic.gdx.backends.lwjgl.LwjglApplicationConfiguration;
+import com.badlogic.gdx.math.MathUtils;
 import semrau.brian.gaslawsdemo.GasLawsDemo;
+import semrau.brian.gaslawsdemo.sim.EngineType;
+import semrau.brian.gaslawsdemo.sim.ParticleEngine;
+import semrau.brian.gaslawsdemo.sim.ParticleGovernor;
 
 public class DesktopLauncher {
 
     public static void main(String[] arg) {
+        // --engine=box2d|event_driven|cell_list|parallel_cell_list|lennard_jones --mole=<particles per mol>
+        // --threads=<worker threads for parallel_cell_list> --seed=<random seed>
+        // --timings=<csv file for per frame phase timings> --render-thread-sim (step on the render thread)
+        // --heatmap-above=<particle count from which a heatmap is drawn instead of particles>
+        // --governor (adapt --mole to the machine instead of keeping it)
+        // --record=<trajectory file to write> --play=<trajectory file to replay instead of simulating>
+        // --replicas=<boxes of gas the pressure readout averages over>
+        // --connect=<host:port of a simulation server to show instead of simulating>
+        String engine = "box2d";
+        int mole = 20;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String timings = null;
+        boolean simThread = true;
+        int heatmapAbove = -1;
+        boolean governor = false;
+        String record = null;
+        String play = null;
+        int replicas = 1;
+        String connect = null;
+        for (String a : arg) {
+            if (a.startsWith("--engine=")) {
+                engine = a.substring("--engine=".length()).toLowerCase();
+            } else if (a.startsWith("--mole=")) {
+                mole = Integer.parseInt(a.substring("--mole=".length()));
+            } else if (a.startsWith("--threads=")) {
+                threads = Integer.parseInt(a.substring("--threads=".length()));
+            } else if (a.startsWith("--seed=")) {
+                MathUtils.random.setSeed(Long.parseLong(a.substring("--seed=".length())));
+            } else if (a.startsWith("--timings=")) {
+                timings = a.substring("--timings=".length());
+            } else if (a.equals("--render-thread-sim")) {
+                simThread = false;
+            } else if (a.startsWith("--heatmap-above=")) {
+                heatmapAbove = Integer.parseInt(a.substring("--heatmap-above=".length()));
+            } else if (a.equals("--governor")) {
+                governor = true;
+            } else if (a.startsWith("--record=")) {
+                record = a.substring("--record=".length());
+            } else if (a.startsWith("--play=")) {
+                play = a.substring("--play=".length());
+            } else if (a.startsWith("--replicas=")) {
+                replicas = Integer.parseInt(a.substring("--replicas=".length()));
+            } else if (a.startsWith("--connect=")) {
+                connect = a.substring("--connect=".length());
+            }
+        }
+
         LwjglApplicationConfiguration config = new LwjglApplicationConfiguration();
         config.width = 720;
         config.height = 720;
-        new LwjglApplication(new GasLawsDemo(), config);
+        ParticleEngine.Factory factory = engineFactory(engine, threads);
+        GasLawsDemo demo = new GasLawsDemo(factory, mole);
+        if (timings != null) {
+            demo.getProfiler().setListener(new CsvTimingWriter(timings));
+        }
+        if (heatmapAbove >= 0) {
+            demo.setHeatmapThreshold(heatmapAbove);
+        }
+        if (play != null) {
+            demo.setRunner(new TrajectoryPlayer(play));
+        } else if (connect != null) {
+            demo.setRunner(new SimulationClient(connect));
+        } else {
+            if (simThread) {
+                demo.setRunner(new SimulationThread());
+            }
+            if (governor) {
+                demo.setGovernor(new ParticleGovernor(5, 20000));
+            }
+            new StateCacheFiller(factory, mole, demo.getStateCache()).start();
+            if (replicas > 1) {
+                // Leave a core to the simulation and render threads
+                demo.setEnsemble(new ReplicaEnsemble(factory, mole, replicas,
+                        Runtime.getRuntime().availableProcessors() - 1, demo.getStepTime()));
+            }
+        }
+        if (record != null) {
+            demo.setRecorder(new TrajectoryRecorder(record, demo.getStepTime()));
+        }
+        new LwjglApplication(demo, config);
+    }
+
+    public static ParticleEngine.Factory engineFactory(String name, int threads) {
+        if (name.equals("parallel_cell_list")) {
+            return new ParallelCellListEngine.Factory(threads);
+        }
+        return EngineType.valueOf(name.toUpperCase());
     }
 
 }
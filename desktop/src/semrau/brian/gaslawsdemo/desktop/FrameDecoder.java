@@ -0,0 +1,104 @@
+package semrau.brian.gaslawsdemo.desktop;
+
+import semrau.brian.gaslawsdemo.sim.Snapshot;
+import semrau.brian.gaslawsdemo.sim.SpeedHistogram;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads back the frames of a {@link FrameEncoder}. Frames have to be decoded in the order they were encoded, starting
+ * at a keyframe.
+ */
+class FrameDecoder {
+
+    // Quantized values of the last decoded frame
+    private int[] qx = new int[0];
+    private int[] qy = new int[0];
+    private int[] qs = new int[0];
+    private int lastCount;
+    private int generation; // bumped where decoding may not continue the particles of the frame before
+    private float volume, temperature, pressure, moles;
+
+    /**
+     * @return whether the frame at the buffer's position is a keyframe, without reading it
+     */
+    static boolean isKeyframe(ByteBuffer buffer) {
+        return (buffer.get(buffer.position() + 4) & FrameEncoder.FLAG_KEYFRAME) != 0;
+    }
+
+    /**
+     * Decodes the frame at the buffer's position and moves past it. With a snapshot, the frame is copied into it and
+     * its speeds are binned into the histogram on the way; without, the frame is only tracked for the deltas.
+     */
+    void decode(ByteBuffer buffer, Snapshot snapshot, SpeedHistogram speeds) {
+        int count = buffer.getInt();
+        int flags = buffer.get();
+        float wallSize = buffer.getFloat();
+        float pressureMean = buffer.getFloat();
+        float pressureDeviation = buffer.getFloat();
+        if ((flags & FrameEncoder.FLAG_PARAMETERS) != 0) {
+            volume = buffer.getFloat();
+            temperature = buffer.getFloat();
+            pressure = buffer.getFloat();
+            moles = buffer.getFloat();
+        }
+
+        if (qx.length < count) {
+            int capacity = Math.max(count, qx.length * 2);
+            qx = Arrays.copyOf(qx, capacity);
+            qy = Arrays.copyOf(qy, capacity);
+            qs = Arrays.copyOf(qs, capacity);
+        }
+        boolean keyframe = (flags & FrameEncoder.FLAG_KEYFRAME) != 0;
+        // A keyframe may follow frames that were skipped or sought past
+        if (keyframe || count != lastCount) generation++;
+        int known = keyframe ? 0 : Math.min(lastCount, count);
+        for (int i = known; i < count; i++) {
+            qx[i] = 0;
+            qy[i] = 0;
+            qs[i] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            qx[i] += getVarint(buffer);
+            qy[i] += getVarint(buffer);
+            qs[i] += getVarint(buffer);
+        }
+        lastCount = count;
+
+        if (snapshot == null) return;
+        snapshot.setCount(count);
+        for (int i = 0; i < count; i++) {
+            snapshot.x[i] = qx[i] * FrameEncoder.POSITION_QUANTUM;
+            snapshot.y[i] = qy[i] * FrameEncoder.POSITION_QUANTUM;
+            float speed = qs[i] * FrameEncoder.SPEED_QUANTUM;
+            snapshot.speed2[i] = speed * speed;
+            speeds.add(snapshot.speed2[i]);
+        }
+        speeds.finish();
+        for (int i = 0; i < SpeedHistogram.BINS; i++) {
+            snapshot.speeds[i] = speeds.getFraction(i);
+        }
+        snapshot.wallSize = wallSize;
+        snapshot.pressureMean = pressureMean;
+        snapshot.pressureDeviation = pressureDeviation;
+        snapshot.volume = volume;
+        snapshot.temperature = temperature;
+        snapshot.idealPressure = pressure;
+        snapshot.moles = moles;
+        snapshot.generation = generation;
+    }
+
+    private static int getVarint(ByteBuffer buffer) {
+        int zigzag = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = buffer.get();
+            zigzag |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+}
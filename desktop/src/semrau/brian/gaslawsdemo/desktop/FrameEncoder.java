@@ -0,0 +1,106 @@
+package semrau.brian.gaslawsdemo.desktop;
+
+import semrau.brian.gaslawsdemo.sim.Snapshot;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes snapshots into compact frames, each relative to the one encoded before it. Shared by the trajectory file
+ * and the network stream, {@link FrameDecoder} reads them back.
+ * <p>
+ * Positions are rounded to {@link #POSITION_QUANTUM} and speeds to {@link #SPEED_QUANTUM}. Every particle then
+ * stores the change of those integers since the frame before as a zig-zag varint, which takes a byte or two as
+ * particles only move a little per step. A keyframe stores its values relative to zero, so decoding can start there.
+ * <p>
+ * Frame, little endian: particle count, flags, wall size, measured pressure mean and deviation, [volume, temperature,
+ * ideal pressure, moles if FLAG_PARAMETERS], x y speed varints per particle. The parameters are only written when they
+ * changed and in keyframes.
+ */
+class FrameEncoder {
+
+    static final float POSITION_QUANTUM = 1.0f / 256.0f;
+    static final float SPEED_QUANTUM = 1.0f / 64.0f;
+
+    static final int FLAG_KEYFRAME = 1;
+    static final int FLAG_PARAMETERS = 2;
+
+    private static final int FRAME_HEADER_SIZE = 4 + 1 + 3 * 4 + 4 * 4;
+    private static final int MAX_VARINT = 5;
+
+    // Last encoded quantized values, to take the deltas from
+    private int[] qx = new int[0];
+    private int[] qy = new int[0];
+    private int[] qs = new int[0];
+    private int lastCount;
+    private float volume, temperature, pressure, moles;
+
+    /**
+     * @return the most bytes a frame of count particles can take
+     */
+    static int maxSize(int count) {
+        return FRAME_HEADER_SIZE + count * 3 * MAX_VARINT;
+    }
+
+    /**
+     * Appends the frame to buffer, which needs {@link #maxSize(int)} bytes left.
+     */
+    void encode(Snapshot snapshot, boolean keyframe, ByteBuffer buffer) {
+        int count = snapshot.count;
+        if (qx.length < count) {
+            int capacity = Math.max(count, qx.length * 2);
+            qx = Arrays.copyOf(qx, capacity);
+            qy = Arrays.copyOf(qy, capacity);
+            qs = Arrays.copyOf(qs, capacity);
+        }
+
+        boolean parameters = keyframe || snapshot.volume != volume || snapshot.temperature != temperature
+                || snapshot.idealPressure != pressure || snapshot.moles != moles;
+
+        buffer.putInt(count);
+        buffer.put((byte) ((keyframe ? FLAG_KEYFRAME : 0) | (parameters ? FLAG_PARAMETERS : 0)));
+        buffer.putFloat(snapshot.wallSize);
+        buffer.putFloat(snapshot.pressureMean);
+        buffer.putFloat(snapshot.pressureDeviation);
+        if (parameters) {
+            volume = snapshot.volume;
+            temperature = snapshot.temperature;
+            pressure = snapshot.idealPressure;
+            moles = snapshot.moles;
+            buffer.putFloat(volume);
+            buffer.putFloat(temperature);
+            buffer.putFloat(pressure);
+            buffer.putFloat(moles);
+        }
+
+        // New particles and keyframes start from zero
+        int known = keyframe ? 0 : Math.min(lastCount, count);
+        for (int i = known; i < count; i++) {
+            qx[i] = 0;
+            qy[i] = 0;
+            qs[i] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            int x = Math.round(snapshot.x[i] / POSITION_QUANTUM);
+            int y = Math.round(snapshot.y[i] / POSITION_QUANTUM);
+            int s = Math.round((float) Math.sqrt(snapshot.speed2[i]) / SPEED_QUANTUM);
+            putVarint(buffer, x - qx[i]);
+            putVarint(buffer, y - qy[i]);
+            putVarint(buffer, s - qs[i]);
+            qx[i] = x;
+            qy[i] = y;
+            qs[i] = s;
+        }
+        lastCount = count;
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7f) != 0) {
+            buffer.put((byte) ((zigzag & 0x7f) | 0x80));
+            zigzag >>>= 7;
+        }
+        buffer.put((byte) zigzag);
+    }
+
+}
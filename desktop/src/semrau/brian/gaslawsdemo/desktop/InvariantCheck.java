@@ -0,0 +1,262 @@
+package semrau.brian.gaslawsdemo.desktop;
+
+import com.badlogic.gdx.math.MathUtils;
+import semrau.brian.gaslawsdemo.sim.Box2DEngine;
+import semrau.brian.gaslawsdemo.sim.GasSimulation;
+import semrau.brian.gaslawsdemo.sim.ParticleEngine;
+import semrau.brian.gaslawsdemo.sim.Profiler;
+import semrau.brian.gaslawsdemo.sim.SampleWindow;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Drives every engine headlessly and checks what any engine has to get right, so engine changes can't quietly break
+ * the physics or slow the demo down:
+ * <ul>
+ * <li>the thermostat sets the mean square speed to t, the step after it keeps it close, and steps neither heat nor
+ * cool the gas on average</li>
+ * <li>no particle ever ends a step outside the walls, also at the hottest setting while the piston squeezes or widens
+ * the box, and Box2D never has to respawn one</li>
+ * <li>the measured pressure matches nRT/V, once corrected for the room the disks themselves take up</li>
+ * <li>with {@code --budgets}, the median engine step at fixed particle counts stays within the budget for that
+ * engine</li>
+ * </ul>
+ * The physics checks run as part of {@code gradlew check}. Step budgets depend on the machine, so they only run when
+ * asked for. Prints one line per check and writes the failed ones to the report file if there is one, then exits
+ * with status 1 if any failed.
+ */
+public class InvariantCheck {
+
+    private static final float STEP_TIME = 1.0f / 60.0f;
+    private static final int BLOCK = 120; // steps, the length of the pressure window
+
+    private static final float THERMOSTAT_TOLERANCE = 0.001f;
+    private static final float DRIFT_TOLERANCE = 0.05f; // how far a single step may move the mean square speed
+    // A real gas trades kinetic for potential energy every step, which moves <v^2> by up to 6% at 500 particles
+    private static final float REAL_GAS_DRIFT_TOLERANCE = 0.15f;
+    private static final float MEAN_DRIFT_TOLERANCE = 0.01f; // how far steps may move it on average
+    private static final float PRESSURE_TOLERANCE = 0.05f;
+
+    // Particle counts and median step time budgets in microseconds. Each engine is held to the counts it is meant
+    // for, in a box of BUDGET_VOLUME; a 60 fps frame is 16667 us.
+    private static final float BUDGET_VOLUME = 100;
+    private static final int[] SMALL_PARTICLES = {200, 2000};
+    private static final long[] SMALL_MICROS = {1000, 8000};
+    private static final int[] LARGE_PARTICLES = {2000, 20000};
+    private static final long[] LARGE_MICROS = {1000, 16000};
+    // Pair forces over a neighbour list cost several times a hard disk collision, about 7 ms for 2000 particles
+    private static final int[] REAL_GAS_PARTICLES = {200, 2000};
+    private static final long[] REAL_GAS_MICROS = {2000, 16000};
+
+    private final List<String> failures = new ArrayList<String>();
+    private final float budgetScale;
+
+    private InvariantCheck(float budgetScale) {
+        this.budgetScale = budgetScale;
+    }
+
+    public static void main(String[] arg) throws IOException {
+        // --engine=<engine,...> --budgets (also check the step time budgets)
+        // --budget-scale=<factor for the step time budgets, for slow machines>
+        // --report=<file to write the failed checks to, one per line>
+        String[] engines = {"box2d", "event_driven", "cell_list", "parallel_cell_list", "lennard_jones"};
+        float budgetScale = 1;
+        boolean budgets = false;
+        String report = null;
+        for (String a : arg) {
+            if (a.startsWith("--engine=")) {
+                engines = a.substring("--engine=".length()).toLowerCase().split(",");
+            } else if (a.startsWith("--budget-scale=")) {
+                budgetScale = Float.parseFloat(a.substring("--budget-scale=".length()));
+            } else if (a.equals("--budgets")) {
+                budgets = true;
+            } else if (a.startsWith("--report=")) {
+                report = a.substring("--report=".length());
+            }
+        }
+
+        InvariantCheck check = new InvariantCheck(budgetScale);
+        for (String engine : engines) {
+            ParticleEngine.Factory factory = DesktopLauncher.engineFactory(engine,
+                    Runtime.getRuntime().availableProcessors());
+            check.thermostat(engine, factory);
+            check.containment(engine, factory);
+            // A real gas is meant to stray from the hard disk equation of state
+            if (!engine.equals("lennard_jones")) {
+                check.pressure(engine, factory, 1, 22.414f, 273.15f);
+                check.pressure(engine, factory, 1, 100, 1000);
+            }
+            if (budgets) {
+                int[] particles = SMALL_PARTICLES;
+                long[] micros = SMALL_MICROS;
+                if (engine.endsWith("cell_list")) {
+                    particles = LARGE_PARTICLES;
+                    micros = LARGE_MICROS;
+                } else if (engine.equals("lennard_jones")) {
+                    particles = REAL_GAS_PARTICLES;
+                    micros = REAL_GAS_MICROS;
+                }
+                for (int i = 0; i < particles.length; i++) {
+                    check.budget(engine, factory, particles[i], micros[i]);
+                }
+            }
+        }
+
+        if (report != null) {
+            PrintWriter writer = new PrintWriter(new FileWriter(report));
+            try {
+                for (String failure : check.failures) {
+                    writer.println(failure);
+                }
+            } finally {
+                writer.close();
+            }
+        }
+
+        if (check.failures.isEmpty()) {
+            System.out.println("All invariants hold");
+            return;
+        }
+        System.out.println(check.failures.size() + " failed:");
+        for (String failure : check.failures) {
+            System.out.println("  " + failure);
+        }
+        System.exit(1);
+    }
+
+    private static GasSimulation create(ParticleEngine.Factory factory, int mole, float n, float v, float t) {
+        MathUtils.random.setSeed(0);
+        GasSimulation sim = new GasSimulation(factory, mole);
+        sim.setVolume(v);
+        sim.setTemperature(t);
+        sim.setMoles(n);
+        return sim;
+    }
+
+    private void thermostat(String engine, ParticleEngine.Factory factory) {
+        float t = 273.15f;
+        GasSimulation sim = create(factory, 500, 1, 22.414f, t);
+        try {
+            float worstSet = 0, worstDrift = 0;
+            double drift = 0;
+            int steps = 0;
+            for (int i = 0; i < 360; i++) {
+                sim.thermostat();
+                worstSet = Math.max(worstSet, Math.abs(sim.getEngine().meanSpeed2() / t - 1));
+                sim.step(STEP_TIME);
+                // A real gas trades kinetic for potential energy while it settles from the seeded positions
+                if (i >= 60) {
+                    float off = sim.getEngine().meanSpeed2() / t - 1;
+                    worstDrift = Math.max(worstDrift, Math.abs(off));
+                    drift += off;
+                    steps++;
+                }
+            }
+            float meanDrift = (float) (drift / steps);
+            float tolerance = engine.equals("lennard_jones") ? REAL_GAS_DRIFT_TOLERANCE : DRIFT_TOLERANCE;
+            report(engine, "thermostat sets <v^2> = t", worstSet <= THERMOSTAT_TOLERANCE,
+                    "worst " + percent(worstSet) + " off");
+            report(engine, "<v^2> stays within " + percent(tolerance) + " of t over a step",
+                    worstDrift <= tolerance, "worst " + percent(worstDrift) + " off");
+            report(engine, "steps keep <v^2> at t on average", Math.abs(meanDrift) <= MEAN_DRIFT_TOLERANCE,
+                    "mean " + percent(meanDrift) + " off");
+        } finally {
+            sim.dispose();
+        }
+    }
+
+    private void containment(String engine, ParticleEngine.Factory factory) {
+        GasSimulation sim = create(factory, 500, 1, 22.414f, 2000);
+        try {
+            int outside = 0;
+            float worst = 0;
+            for (int i = 0; i < 600; i++) {
+                // Squeeze the box to a quarter and let it out again while the particles are moving
+                if (i == 120) sim.setVolume(22.414f / 4);
+                if (i == 360) sim.setVolume(22.414f);
+                sim.step(STEP_TIME);
+
+                ParticleEngine particles = sim.getEngine();
+                float half = sim.getWallSize() / 2;
+                for (int p = 0; p < particles.getParticleCount(); p++) {
+                    float beyond = Math.max(Math.abs(particles.getX(p)), Math.abs(particles.getY(p))) - half;
+                    if (beyond > 0) {
+                        outside++;
+                        worst = Math.max(worst, beyond);
+                    }
+                }
+            }
+            report(engine, "particles stay inside the walls", outside == 0,
+                    outside + " particle steps outside, worst by " + worst);
+            if (sim.getEngine() instanceof Box2DEngine) {
+                int escapes = ((Box2DEngine) sim.getEngine()).getEscapes();
+                report(engine, "no particle escapes to be respawned", escapes == 0, escapes + " respawned");
+            }
+        } finally {
+            sim.dispose();
+        }
+    }
+
+    private void pressure(String engine, ParticleEngine.Factory factory, float n, float v, float t) {
+        GasSimulation sim = create(factory, 200, n, v, t);
+        try {
+            for (int i = 0; i < 300; i++) {
+                sim.step(STEP_TIME);
+            }
+            int blocks = 10;
+            SampleWindow means = new SampleWindow(blocks);
+            for (int b = 0; b < blocks; b++) {
+                for (int i = 0; i < BLOCK; i++) {
+                    sim.step(STEP_TIME);
+                }
+                means.add(sim.getMeasuredPressure().mean());
+            }
+            // Henderson's equation of state for hard disks at area fraction phi
+            float radius = sim.getParticleRadius();
+            float phi = sim.getEngine().getParticleCount() * MathUtils.PI * radius * radius
+                    / (sim.getWallSize() * sim.getWallSize());
+            float z = (1 + phi * phi / 8) / ((1 - phi) * (1 - phi));
+            float ratio = means.mean() / (sim.idealPressure() * z);
+            report(engine, "P = Z nRT/V at n=" + n + " V=" + v + " T=" + t,
+                    Math.abs(ratio - 1) <= PRESSURE_TOLERANCE, "measured/expected " + ratio + ", Z " + z);
+        } finally {
+            sim.dispose();
+        }
+    }
+
+    private void budget(String engine, ParticleEngine.Factory factory, int particles, long micros) {
+        GasSimulation sim = create(factory, particles, 1, BUDGET_VOLUME, 273.15f);
+        Profiler profiler = new Profiler();
+        try {
+            for (int i = 0; i < 60; i++) {
+                sim.step(STEP_TIME);
+            }
+            sim.setProfiler(profiler);
+            for (int i = 0; i < 120; i++) {
+                sim.step(STEP_TIME);
+            }
+            long median = profiler.percentile(Profiler.STEP, 0.5f);
+            long budget = (long) (micros * budgetScale);
+            report(engine, "step of " + particles + " particles within " + budget + " us", median <= budget,
+                    "median " + median + " us");
+        } finally {
+            sim.dispose();
+        }
+    }
+
+    private void report(String engine, String check, boolean passed, String detail) {
+        String line = engine + ": " + check + " (" + detail + ")";
+        System.out.println((passed ? "ok   " : "FAIL ") + line);
+        if (!passed) failures.add(line);
+    }
+
+    private static String percent(float fraction) {
+        return String.format(Locale.ROOT, "%.3f%%", fraction * 100);
+    }
+
+}
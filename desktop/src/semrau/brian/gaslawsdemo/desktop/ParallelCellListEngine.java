@@ -0,0 +1,186 @@
+package semrau.brian.gaslawsdemo.desktop;
+
+import semrau.brian.gaslawsdemo.sim.CellListEngine;
+import semrau.brian.gaslawsdemo.sim.ParticleEngine;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * {@link CellListEngine} with its step spread over a fork-join pool.
+ * <p>
+ * The box is cut into horizontal strips of cell rows. Resolving a strip also touches the first row of the strip
+ * above it, so all even strips run together first and then all odd strips, which keeps concurrently running strips
+ * from ever sharing a particle. Moving and the thermostat sums are split into fixed index chunks. Strip and chunk
+ * sizes never depend on the number of threads, and partial sums are added up in chunk order, so a run with a fixed
+ * seed gives the same result on any machine.
+ * <p>
+ * Engines made by one {@link Factory} share its pool, so the replicas of an ensemble or the points of a sweep add
+ * work to the same threads instead of each bringing a pool of their own.
+ */
+public class ParallelCellListEngine extends CellListEngine {
+
+    private static final int ROWS_PER_STRIP = 4;
+    private static final int CHUNK = 4096;
+
+    private static final int MOVE = 0;
+    private static final int COLLIDE = 1;
+    private static final int SUM = 2;
+    private static final int SCALE = 3;
+
+    private final ForkJoinPool pool;
+    private final Batch batch = new Batch();
+    private Job[] jobs = new Job[0];
+
+    private float dt;
+    private float scale;
+
+    public ParallelCellListEngine(float particleRadius, ForkJoinPool pool) {
+        super(particleRadius);
+        this.pool = pool;
+    }
+
+    @Override
+    public void step(float dt) {
+        this.dt = dt;
+
+        bin();
+
+        int strips = (getCellsPerSide() + ROWS_PER_STRIP - 1) / ROWS_PER_STRIP;
+        for (int parity = 0; parity < 2; parity++) {
+            int size = 0;
+            for (int strip = parity; strip < strips; strip += 2) {
+                int from = strip * ROWS_PER_STRIP;
+                job(size++, COLLIDE, from, Math.min(from + ROWS_PER_STRIP, getCellsPerSide()));
+            }
+            run(size);
+        }
+
+        int size = chunks(MOVE);
+        run(size);
+        for (int i = 0; i < size; i++) {
+            addWallImpulse(jobs[i].sum);
+        }
+    }
+
+    @Override
+    public float meanSpeed2() {
+        int size = chunks(SUM);
+        run(size);
+        float vel2 = 0;
+        for (int i = 0; i < size; i++) {
+            vel2 += jobs[i].sum;
+        }
+        return vel2 / getParticleCount();
+    }
+
+    @Override
+    public void scaleVelocities(float scale) {
+        this.scale = scale;
+        run(chunks(SCALE));
+    }
+
+    private int chunks(int task) {
+        int size = 0;
+        for (int from = 0; from < getParticleCount(); from += CHUNK) {
+            job(size++, task, from, Math.min(from + CHUNK, getParticleCount()));
+        }
+        return size;
+    }
+
+    private void job(int index, int task, int from, int to) {
+        if (index >= jobs.length) {
+            Job[] grown = new Job[Math.max(index + 1, jobs.length * 2)];
+            System.arraycopy(jobs, 0, grown, 0, jobs.length);
+            for (int i = jobs.length; i < grown.length; i++) {
+                grown[i] = new Job();
+            }
+            jobs = grown;
+        }
+        Job job = jobs[index];
+        job.reinitialize();
+        job.task = task;
+        job.from = from;
+        job.to = to;
+    }
+
+    private void run(int size) {
+        if (size == 0) return;
+        if (size == 1) {
+            jobs[0].compute();
+            return;
+        }
+        batch.reinitialize();
+        batch.size = size;
+        pool.invoke(batch);
+    }
+
+    private final class Batch extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        int size;
+
+        @Override
+        protected void compute() {
+            for (int i = size - 1; i > 0; i--) {
+                jobs[i].fork();
+            }
+            jobs[0].compute();
+            for (int i = 1; i < size; i++) {
+                jobs[i].join();
+            }
+        }
+
+    }
+
+    private final class Job extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        int task;
+        int from, to;
+        float sum;
+
+        @Override
+        protected void compute() {
+            switch (task) {
+                case MOVE:
+                    sum = move(dt, from, to);
+                    break;
+                case COLLIDE:
+                    collide(from, to);
+                    break;
+                case SUM:
+                    sum = sumSpeed2(from, to);
+                    break;
+                case SCALE:
+                    scaleVelocities(scale, from, to);
+                    break;
+            }
+        }
+
+    }
+
+    public static class Factory implements ParticleEngine.Factory {
+
+        private final int threads;
+        private ForkJoinPool pool;
+
+        public Factory(int threads) {
+            this.threads = threads;
+        }
+
+        @Override
+        public synchronized ParticleEngine create(float particleRadius, float wallThickness) {
+            // Its workers are daemon threads that end themselves when idle, so the pool never needs shutting down
+            if (pool == null) {
+                pool = threads == ForkJoinPool.getCommonPoolParallelism() ? ForkJoinPool.commonPool()
+                        : new ForkJoinPool(threads);
+            }
+            return new ParallelCellListEngine(particleRadius, pool);
+        }
+
+    }
+
+}
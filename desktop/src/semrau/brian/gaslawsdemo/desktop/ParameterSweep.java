@@ -0,0 +1,215 @@
+package semrau.brian.gaslawsdemo.desktop;
+
+import semrau.brian.gaslawsdemo.sim.GasSimulation;
+import semrau.brian.gaslawsdemo.sim.ParticleEngine;
+import semrau.brian.gaslawsdemo.sim.SampleWindow;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the simulation without a window over a grid of (n, V, T) points and writes the measured pressure next to
+ * nRT/V, and the diffusion coefficient, once grouped into isotherms and once into isochores.
+ * <p>
+ * Every point is its own simulation on a pool thread. After a warm-up it measures in blocks of one pressure window;
+ * the pressure is the mean of the block means and its error their standard error. Each point seeds its own random
+ * numbers from the sweep seed and its place in the grid, so a sweep repeats exactly however its points are spread
+ * over the threads. The diffusion coefficient comes
+ * from the displacements over the whole measurement.
+ */
+public class ParameterSweep {
+
+    private static final int BLOCK = 120; // steps, the length of the pressure window
+
+    public static void main(String[] arg) throws IOException, InterruptedException, ExecutionException {
+        // --engine=box2d|event_driven|cell_list|parallel_cell_list|lennard_jones --mole=<particles per mol>
+        // --threads=<simulations at once> --n=<mol,...> --v=<L,...> --t=<K,...>
+        // --warmup=<steps> --blocks=<measured blocks of 120 steps> --out=<directory for the CSV files>
+        // --seed=<random seed>
+        String engine = "cell_list";
+        int mole = 200;
+        int threads = Runtime.getRuntime().availableProcessors();
+        float[] ns = {1, 2, 5};
+        float[] vs = {10, 22.414f, 50, 100};
+        float[] ts = {100, 273.15f, 500, 1000, 2000};
+        int warmup = 300;
+        int blocks = 10;
+        String out = "sweep";
+        long seed = 0;
+        for (String a : arg) {
+            if (a.startsWith("--engine=")) {
+                engine = a.substring("--engine=".length()).toLowerCase();
+            } else if (a.startsWith("--mole=")) {
+                mole = Integer.parseInt(a.substring("--mole=".length()));
+            } else if (a.startsWith("--threads=")) {
+                threads = Integer.parseInt(a.substring("--threads=".length()));
+            } else if (a.startsWith("--n=")) {
+                ns = parseList(a.substring("--n=".length()));
+            } else if (a.startsWith("--v=")) {
+                vs = parseList(a.substring("--v=".length()));
+            } else if (a.startsWith("--t=")) {
+                ts = parseList(a.substring("--t=".length()));
+            } else if (a.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(a.substring("--warmup=".length()));
+            } else if (a.startsWith("--blocks=")) {
+                blocks = Integer.parseInt(a.substring("--blocks=".length()));
+            } else if (a.startsWith("--out=")) {
+                out = a.substring("--out=".length());
+            } else if (a.startsWith("--seed=")) {
+                seed = Long.parseLong(a.substring("--seed=".length()));
+            }
+        }
+
+        // Each simulation runs on one pool thread, so a parallel engine only gets one worker of its own
+        ParticleEngine.Factory factory = DesktopLauncher.engineFactory(engine, 1);
+
+        List<Point> points = new ArrayList<Point>();
+        for (float n : ns) {
+            for (float v : vs) {
+                for (float t : ts) {
+                    points.add(new Point(n, v, t, seed + points.size()));
+                }
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Point>> results = new ArrayList<Future<Point>>();
+        for (Point point : points) {
+            results.add(pool.submit(new Run(point, factory, mole, warmup, blocks)));
+        }
+        for (int i = 0; i < results.size(); i++) {
+            Point point = results.get(i).get();
+            System.out.println((i + 1) + "/" + points.size() + " " + point.row());
+        }
+        pool.shutdown();
+
+        File dir = new File(out);
+        dir.mkdirs();
+
+        Point[] sorted = points.toArray(new Point[points.size()]);
+        Arrays.sort(sorted, new Comparator<Point>() {
+            @Override
+            public int compare(Point a, Point b) {
+                if (a.n != b.n) return Float.compare(a.n, b.n);
+                if (a.t != b.t) return Float.compare(a.t, b.t);
+                return Float.compare(a.v, b.v);
+            }
+        });
+        write(new File(dir, "isotherms.csv"), "n,T,V", sorted, true);
+
+        Arrays.sort(sorted, new Comparator<Point>() {
+            @Override
+            public int compare(Point a, Point b) {
+                if (a.n != b.n) return Float.compare(a.n, b.n);
+                if (a.v != b.v) return Float.compare(a.v, b.v);
+                return Float.compare(a.t, b.t);
+            }
+        });
+        write(new File(dir, "isochores.csv"), "n,V,T", sorted, false);
+
+        System.out.println("Wrote " + dir.getAbsolutePath());
+    }
+
+    private static float[] parseList(String list) {
+        String[] parts = list.split(",");
+        float[] values = new float[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Float.parseFloat(parts[i]);
+        }
+        return values;
+    }
+
+    private static void write(File file, String key, Point[] points, boolean isotherm) throws IOException {
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            writer.println(key + ",particles,P measured,P error,P ideal,measured/ideal,D");
+            for (Point p : points) {
+                String keys = isotherm ? p.n + "," + p.t + "," + p.v : p.n + "," + p.v + "," + p.t;
+                writer.println(keys + "," + p.row());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static class Point {
+
+        final float n, v, t;
+        final long seed;
+        int particles;
+        float pressure, error, ideal, diffusion;
+
+        Point(float n, float v, float t, long seed) {
+            this.n = n;
+            this.v = v;
+            this.t = t;
+            this.seed = seed;
+        }
+
+        String row() {
+            return String.format(Locale.ROOT, "%d,%.5f,%.5f,%.5f,%.5f,%.5f", particles, pressure, error, ideal,
+                    pressure / ideal, diffusion);
+        }
+
+    }
+
+    private static class Run implements Callable<Point> {
+
+        private final Point point;
+        private final ParticleEngine.Factory factory;
+        private final int mole, warmup, blocks;
+
+        Run(Point point, ParticleEngine.Factory factory, int mole, int warmup, int blocks) {
+            this.point = point;
+            this.factory = factory;
+            this.mole = mole;
+            this.warmup = warmup;
+            this.blocks = blocks;
+        }
+
+        @Override
+        public Point call() {
+            float dt = 1.0f / 60.0f;
+            GasSimulation sim = new GasSimulation(factory, mole, point.seed);
+            try {
+                sim.setVolume(point.v);
+                sim.setTemperature(point.t);
+                sim.setMoles(point.n);
+                for (int i = 0; i < warmup; i++) {
+                    sim.step(dt);
+                }
+
+                SampleWindow means = new SampleWindow(blocks);
+                for (int b = 0; b < blocks; b++) {
+                    for (int i = 0; i < BLOCK; i++) {
+                        sim.step(dt);
+                    }
+                    means.add(sim.getMeasuredPressure().mean());
+                }
+
+                point.particles = sim.getEngine().getParticleCount();
+                point.pressure = means.mean();
+                point.error = (float) Math.sqrt(means.variance() / blocks);
+                point.ideal = sim.idealPressure();
+                point.diffusion = sim.diffusionCoefficient();
+                return point;
+            } finally {
+                sim.dispose();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,165 @@
+package semrau.brian.gaslawsdemo.desktop;
+
+import com.badlogic.gdx.math.MathUtils;
+import semrau.brian.gaslawsdemo.sim.Ensemble;
+import semrau.brian.gaslawsdemo.sim.GasSimulation;
+import semrau.brian.gaslawsdemo.sim.ParticleEngine;
+import semrau.brian.gaslawsdemo.sim.Snapshot;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs extra replicas of the gas on a pool of low priority threads, each stepping at the same rate as the displayed
+ * simulation.
+ * <p>
+ * Every replica owns its simulation, seeded separately, and writes its last pressure window mean into its own
+ * volatile field after each step; {@link #merge} only reads those fields, so nobody ever takes a lock. The replicas
+ * follow the displayed state through their {@link semrau.brian.gaslawsdemo.sim.PendingState}. Each change of state
+ * starts a new generation, and a replica only publishes once its window holds nothing but steps of the current one,
+ * so the readout never mixes states. Averaging K window means cuts the variance of the readout K times, the same as
+ * watching one box K times as long.
+ */
+public class ReplicaEnsemble implements Ensemble {
+
+    private final Replica[] replicas;
+    private final ScheduledExecutorService pool;
+
+    // What the replicas were last steered to, only touched by merge
+    private float volume = -1, temperature = -1, moles = -1;
+    private int particlesPerMole = -1;
+
+    private volatile int generation; // 0 until the replicas have been steered the first time
+    private int merged = 1;
+    private float pressureMean, pressureError;
+
+    /**
+     * @param replicas total replicas, the displayed simulation included
+     */
+    public ReplicaEnsemble(ParticleEngine.Factory engineFactory, int particlesPerMole, int replicas, int threads,
+                           float stepTime) {
+        this.replicas = new Replica[replicas - 1];
+        for (int i = 0; i < this.replicas.length; i++) {
+            this.replicas[i] = new Replica(new GasSimulation(engineFactory, particlesPerMole,
+                    MathUtils.random.nextLong()), stepTime);
+        }
+
+        pool = Executors.newScheduledThreadPool(Math.max(1, Math.min(threads, this.replicas.length)),
+                new ThreadFactory() {
+                    private int created;
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Replica " + ++created);
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        long period = (long) (stepTime * 1000000000L);
+        for (final Replica replica : this.replicas) {
+            pool.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    replica.step(generation);
+                }
+            }, 0, period, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void merge(Snapshot primary, int particlesPerMole) {
+        if (primary.volume != volume || primary.temperature != temperature || primary.moles != moles
+                || particlesPerMole != this.particlesPerMole) {
+            volume = primary.volume;
+            temperature = primary.temperature;
+            moles = primary.moles;
+            this.particlesPerMole = particlesPerMole;
+            for (Replica replica : replicas) {
+                replica.sim.getPending().setVolume(volume);
+                replica.sim.getPending().setTemperature(temperature);
+                replica.sim.getPending().setMoles(moles);
+                replica.sim.getPending().setParticlesPerMole(particlesPerMole);
+            }
+            // After the pending changes, so a replica that sees the new generation also sees them
+            generation++;
+        }
+
+        // Mean and variance of the window means, Welford style
+        int count = 1;
+        float mean = primary.pressureMean;
+        float m2 = 0;
+        for (Replica replica : replicas) {
+            long published = replica.published;
+            if ((int) (published >>> 32) != generation) continue;
+            float pressure = Float.intBitsToFloat((int) published);
+            count++;
+            float delta = pressure - mean;
+            mean += delta / count;
+            m2 += delta * (pressure - mean);
+        }
+        merged = count;
+        pressureMean = mean;
+        // One box has no spread between boxes to take an error from
+        pressureError = count > 1 ? (float) Math.sqrt(m2 / (count - 1) / count) : Float.NaN;
+    }
+
+    @Override
+    public int getReplicas() {
+        return merged;
+    }
+
+    @Override
+    public float getPressureMean() {
+        return pressureMean;
+    }
+
+    @Override
+    public float getPressureError() {
+        return pressureError;
+    }
+
+    @Override
+    public void dispose() {
+        pool.shutdownNow();
+        try {
+            pool.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Replica replica : replicas) {
+            replica.sim.dispose();
+        }
+    }
+
+    private static class Replica {
+
+        final GasSimulation sim;
+        final float stepTime;
+        // Generation in the high half and pressure window mean in the low half, written at once so they always match
+        volatile long published;
+        private int generation;
+        private int steps;
+
+        Replica(GasSimulation sim, float stepTime) {
+            this.sim = sim;
+            this.stepTime = stepTime;
+        }
+
+        void step(int generation) {
+            if (generation == 0) return;
+            if (generation != this.generation) {
+                this.generation = generation;
+                steps = 0;
+            }
+            sim.step(stepTime);
+            if (++steps < sim.getMeasuredPressure().capacity()) return;
+            float pressure = sim.getMeasuredPressure().mean();
+            published = (long) generation << 32 | Float.floatToRawIntBits(pressure) & 0xffffffffL;
+        }
+
+    }
+
+}
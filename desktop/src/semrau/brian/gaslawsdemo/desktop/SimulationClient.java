@@ -0,0 +1,174 @@
+package semrau.brian.gaslawsdemo.desktop;
+
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import semrau.brian.gaslawsdemo.sim.SimulationLoop;
+import semrau.brian.gaslawsdemo.sim.Snapshot;
+import semrau.brian.gaslawsdemo.sim.SnapshotBuffer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Shows a simulation running in a {@link SimulationServer} instead of simulating, publishing every frame it receives
+ * as a snapshot. Control changes are sent to the server, which applies them for every viewer.
+ * <p>
+ * One thread reads frames and another sends requests, so neither waits for the other and the render thread never
+ * waits for the network. Requests that come faster than they can be sent are coalesced, only the newest counts.
+ */
+public class SimulationClient implements SimulationLoop.Remote, Runnable {
+
+    private final SocketChannel channel;
+    private final float stepTime;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final ByteBuffer request = ByteBuffer.allocate(SimulationServer.REQUEST_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer frame = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+
+    // The newest request not sent yet, guarded by request
+    private float requestV, requestT, requestN;
+    private boolean requested;
+
+    private SimulationLoop loop;
+    private Thread thread;
+    private Thread sender;
+    private volatile boolean running;
+
+    /**
+     * @param address host:port of the server
+     */
+    public SimulationClient(String address) {
+        int colon = address.lastIndexOf(':');
+        String host = colon < 0 ? "localhost" : address.substring(0, colon);
+        int port = Integer.parseInt(address.substring(colon + 1));
+        try {
+            channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.socket().setTcpNoDelay(true);
+
+            ByteBuffer hello = ByteBuffer.allocate(SimulationServer.HELLO_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(hello);
+            if (hello.getInt() != SimulationServer.MAGIC)
+                throw new GdxRuntimeException("Not a simulation server: " + address);
+            int version = hello.getInt();
+            if (version != SimulationServer.VERSION)
+                throw new GdxRuntimeException("Unsupported simulation server version " + version + ": " + address);
+            stepTime = hello.getFloat();
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't connect to simulation server " + address, e);
+        }
+    }
+
+    public float getStepTime() {
+        return stepTime;
+    }
+
+    @Override
+    public void request(float v, float t, float n) {
+        synchronized (request) {
+            requestV = v;
+            requestT = t;
+            requestN = n;
+            requested = true;
+            request.notify();
+        }
+    }
+
+    @Override
+    public void start(SimulationLoop loop) {
+        this.loop = loop;
+        running = true;
+        thread = new Thread(this, "Simulation client");
+        thread.setDaemon(true);
+        thread.start();
+        sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                send();
+            }
+        }, "Simulation client requests");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    private void send() {
+        try {
+            while (true) {
+                synchronized (request) {
+                    while (!requested && running) {
+                        request.wait();
+                    }
+                    if (!running) return;
+                    request.clear();
+                    request.putFloat(requestV);
+                    request.putFloat(requestT);
+                    request.putFloat(requestN);
+                    request.flip();
+                    requested = false;
+                }
+                // Written outside the lock, so request() can take the next one meanwhile
+                while (request.hasRemaining()) {
+                    channel.write(request);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The reading thread notices the broken connection
+        }
+    }
+
+    @Override
+    public void run() {
+        SnapshotBuffer snapshots = loop.getSnapshots();
+        try {
+            while (running) {
+                length.clear();
+                readFully(length);
+                int size = length.getInt();
+                if (frame.capacity() < size) {
+                    frame = ByteBuffer.allocate(Math.max(size, frame.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+                }
+                frame.clear();
+                frame.limit(size);
+                readFully(frame);
+
+                Snapshot back = snapshots.getBack();
+                decoder.decode(frame, back, loop.getSpeeds());
+                back.stamp = System.nanoTime();
+                snapshots.publish();
+            }
+        } catch (IOException e) {
+            // Closed by stop() or by the server, either way the last frame stays on screen
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw new EOFException("Simulation server closed the connection");
+        }
+        buffer.flip();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        synchronized (request) {
+            request.notify();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            thread.join();
+            sender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
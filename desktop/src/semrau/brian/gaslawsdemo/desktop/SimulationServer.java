@@ -0,0 +1,382 @@
+package semrau.brian.gaslawsdemo.desktop;
+
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import semrau.brian.gaslawsdemo.sim.GasSimulation;
+import semrau.brian.gaslawsdemo.sim.SimulationLoop;
+import semrau.brian.gaslawsdemo.sim.Snapshot;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Streams every step of a simulation to any number of {@link SimulationClient viewers} over TCP, and applies the
+ * state changes they ask for.
+ * <p>
+ * Each step is encoded once, as a {@link FrameEncoder} frame relative to the step before, and the same bytes go to
+ * every viewer. Every {@link #KEYFRAME_INTERVAL}th frame is a keyframe, and a viewer that just connected gets one on the
+ * next step. A single thread serves all sockets through a non-blocking selector. A viewer that can't keep up has
+ * its frames queued up to {@link #MAX_QUEUED} bytes; after that its frames are dropped until the next keyframe, so a
+ * slow viewer skips ahead instead of holding up the others or running the server out of memory. Frames go back to a
+ * pool once every viewer has sent them, so a running server doesn't allocate per step.
+ * <p>
+ * Protocol, little endian: the server sends magic, version and step time, then frames, each preceded by its length.
+ * Viewers send volume, temperature and moles whenever their controls change, which are held to the demo's slider
+ * ranges.
+ */
+public class SimulationServer implements SimulationLoop.Recorder, Runnable {
+
+    static final int MAGIC = 0x53544c47; // "GLTS"
+    static final int VERSION = 1;
+    static final int HELLO_SIZE = 12;
+    static final int REQUEST_SIZE = 12;
+    static final int KEYFRAME_INTERVAL = 60;
+    static final int MAX_QUEUED = 1 << 20;
+
+    // The ranges of the demo's sliders, anything outside them could only come from a broken or hostile viewer
+    static final float MIN_VOLUME = 1, MAX_VOLUME = 100;
+    static final float MIN_TEMPERATURE = 0.1f, MAX_TEMPERATURE = 2000;
+    static final float MAX_MOLES = 10;
+
+    private final GasSimulation sim;
+    private final float stepTime;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final List<Client> clients = new ArrayList<Client>();
+    private Thread thread;
+    private volatile boolean running;
+
+    // Encoding, on the thread that steps the simulation
+    private final FrameEncoder encoder = new FrameEncoder();
+    private int sinceKeyframe;
+
+    // Handed from the simulation thread to the selector thread, and back once sent
+    private final ConcurrentLinkedQueue<Frame> frames = new ConcurrentLinkedQueue<Frame>();
+    private final ConcurrentLinkedQueue<Frame> pool = new ConcurrentLinkedQueue<Frame>();
+    private volatile boolean keyframeRequested;
+    private volatile int clientCount;
+
+    public SimulationServer(GasSimulation sim, int port, float stepTime) {
+        this.sim = sim;
+        this.stepTime = stepTime;
+        try {
+            selector = Selector.open();
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't listen on port " + port, e);
+        }
+    }
+
+    public static void main(String[] arg) {
+        // --port=<TCP port> --engine=box2d|event_driven|cell_list|parallel_cell_list|lennard_jones
+        // --mole=<particles per mol> --threads=<worker threads for parallel_cell_list> --seed=<random seed>
+        // --v=<L> --t=<K> --n=<mol> to start from
+        int port = 7070;
+        String engine = "cell_list";
+        int mole = 200;
+        int threads = Runtime.getRuntime().availableProcessors();
+        float v = 22.414f, t = 273.15f, n = 1;
+        for (String a : arg) {
+            if (a.startsWith("--port=")) {
+                port = Integer.parseInt(a.substring("--port=".length()));
+            } else if (a.startsWith("--engine=")) {
+                engine = a.substring("--engine=".length()).toLowerCase();
+            } else if (a.startsWith("--mole=")) {
+                mole = Integer.parseInt(a.substring("--mole=".length()));
+            } else if (a.startsWith("--threads=")) {
+                threads = Integer.parseInt(a.substring("--threads=".length()));
+            } else if (a.startsWith("--seed=")) {
+                MathUtils.random.setSeed(Long.parseLong(a.substring("--seed=".length())));
+            } else if (a.startsWith("--v=")) {
+                v = Float.parseFloat(a.substring("--v=".length()));
+            } else if (a.startsWith("--t=")) {
+                t = Float.parseFloat(a.substring("--t=".length()));
+            } else if (a.startsWith("--n=")) {
+                n = Float.parseFloat(a.substring("--n=".length()));
+            }
+        }
+
+        float stepTime = 1.0f / 60.0f;
+        GasSimulation sim = new GasSimulation(DesktopLauncher.engineFactory(engine, threads), mole);
+        sim.setVolume(v);
+        sim.setTemperature(t);
+        sim.setMoles(n);
+
+        SimulationServer server = new SimulationServer(sim, port, stepTime);
+        SimulationLoop loop = new SimulationLoop(sim, stepTime);
+        loop.setRecorder(server);
+        server.start();
+        new SimulationThread().start(loop);
+        System.out.println("Serving " + engine + " on port " + port);
+        server.join();
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "Simulation server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits until the server has been disposed.
+     */
+    public void join() {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void record(Snapshot snapshot) {
+        if (clientCount == 0) {
+            // Nobody to send deltas to, whoever connects next starts from a keyframe anyway
+            sinceKeyframe = 0;
+            return;
+        }
+
+        boolean keyframe = keyframeRequested || sinceKeyframe % KEYFRAME_INTERVAL == 0;
+        if (keyframe) {
+            keyframeRequested = false;
+            sinceKeyframe = 0;
+        }
+        sinceKeyframe++;
+
+        Frame frame = pool.poll();
+        if (frame == null) frame = new Frame(true);
+        int size = 4 + FrameEncoder.maxSize(snapshot.count);
+        if (frame.buffer.capacity() < size) {
+            frame.buffer = ByteBuffer.allocate(Math.max(size, frame.buffer.capacity() * 2))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        ByteBuffer buffer = frame.buffer;
+        buffer.clear();
+        buffer.position(4);
+        encoder.encode(snapshot, keyframe, buffer);
+        buffer.putInt(0, buffer.position() - 4);
+        frame.size = buffer.position();
+        frame.keyframe = keyframe;
+        frames.add(frame);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                throw new GdxRuntimeException("Simulation server failed", e);
+            }
+            if (!running) break;
+
+            Frame frame;
+            while ((frame = frames.poll()) != null) {
+                broadcast(frame);
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) continue;
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Client client = (Client) key.attachment();
+                if (key.isReadable()) read(client);
+                if (key.isValid() && key.isWritable()) flush(client);
+            }
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            channel = server.accept();
+            if (channel == null) return;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            return;
+        }
+
+        Client client = new Client(channel);
+        try {
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+        } catch (IOException e) {
+            close(client);
+            return;
+        }
+        Frame hello = new Frame(false);
+        hello.buffer.putInt(MAGIC);
+        hello.buffer.putInt(VERSION);
+        hello.buffer.putFloat(stepTime);
+        hello.size = HELLO_SIZE;
+        hello.users = 1;
+        client.queue.add(hello);
+        client.queued += HELLO_SIZE;
+
+        clients.add(client);
+        clientCount = clients.size();
+        keyframeRequested = true;
+        flush(client);
+    }
+
+    private void broadcast(Frame frame) {
+        // Count the users first, so a client that sends it straight away can't hand it back while others still queue it
+        frame.users = 1;
+        for (int i = clients.size() - 1; i >= 0; i--) {
+            Client client = clients.get(i);
+            if (!client.synced && !frame.keyframe) continue;
+            if (client.queued + frame.size > MAX_QUEUED) {
+                // Deltas are useless once one is missing, so skip to the next keyframe
+                client.synced = false;
+                continue;
+            }
+            client.synced = true;
+            client.queue.add(frame);
+            client.queued += frame.size;
+            frame.users++;
+            flush(client);
+        }
+        release(frame);
+    }
+
+    private void flush(Client client) {
+        try {
+            while (!client.queue.isEmpty()) {
+                // Clients share the frame's buffer, each keeps its own place in the frame at the head of its queue
+                Frame head = client.queue.peek();
+                head.buffer.limit(head.size).position(client.sent);
+                client.channel.write(head.buffer);
+                client.sent = head.buffer.position();
+                if (client.sent < head.size) break;
+                client.sent = 0;
+                client.queued -= head.size;
+                client.queue.poll();
+                release(head);
+            }
+        } catch (IOException e) {
+            close(client);
+            return;
+        }
+        // Only wait for the socket to drain while there is something left to send
+        client.key.interestOps(client.queue.isEmpty() ? SelectionKey.OP_READ
+                : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void read(Client client) {
+        try {
+            while (true) {
+                int read = client.channel.read(client.in);
+                if (read < 0) {
+                    close(client);
+                    return;
+                }
+                if (client.in.hasRemaining()) return;
+
+                client.in.flip();
+                float v = client.in.getFloat();
+                float t = client.in.getFloat();
+                float n = client.in.getFloat();
+                client.in.clear();
+                // Only take values the controls could have produced, a million mol would run the server out of memory
+                if (!Float.isNaN(v)) sim.getPending().setVolume(MathUtils.clamp(v, MIN_VOLUME, MAX_VOLUME));
+                if (!Float.isNaN(t))
+                    sim.getPending().setTemperature(MathUtils.clamp(t, MIN_TEMPERATURE, MAX_TEMPERATURE));
+                if (!Float.isNaN(n)) sim.getPending().setMoles(MathUtils.clamp(n, 0, MAX_MOLES));
+            }
+        } catch (IOException e) {
+            close(client);
+        }
+    }
+
+    private void close(Client client) {
+        if (client.key != null) client.key.cancel();
+        try {
+            client.channel.close();
+        } catch (IOException ignored) {
+        }
+        Frame frame;
+        while ((frame = client.queue.poll()) != null) {
+            release(frame);
+        }
+        client.queued = 0;
+        client.sent = 0;
+        clients.remove(client);
+        clientCount = clients.size();
+    }
+
+    /**
+     * Gives up one use of the frame, and returns it to the pool after the last.
+     */
+    private void release(Frame frame) {
+        if (--frame.users == 0 && frame.pooled) pool.add(frame);
+    }
+
+    @Override
+    public void dispose() {
+        running = false;
+        selector.wakeup();
+        join();
+        for (int i = clients.size() - 1; i >= 0; i--) {
+            close(clients.get(i));
+        }
+        try {
+            server.close();
+            selector.close();
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't close simulation server", e);
+        }
+    }
+
+    private static class Frame {
+
+        final boolean pooled;
+        ByteBuffer buffer;
+        int size;
+        boolean keyframe;
+        int users; // clients still to send it, plus one while it is being broadcast; only the selector thread counts
+
+        Frame(boolean pooled) {
+            this.pooled = pooled;
+            buffer = ByteBuffer.allocate(pooled ? 1 << 16 : HELLO_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+    }
+
+    private static class Client {
+
+        final SocketChannel channel;
+        SelectionKey key;
+        final ArrayDeque<Frame> queue = new ArrayDeque<Frame>();
+        int queued;
+        int sent; // bytes of the frame at the head of the queue already written
+        boolean synced; // got every frame since its last keyframe
+        final ByteBuffer in = ByteBuffer.allocate(REQUEST_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+    }
+
+}
@@ -0,0 +1,54 @@
+package semrau.brian.gaslawsdemo.desktop;
+
+import semrau.brian.gaslawsdemo.sim.SimulationLoop;
+
+/**
+ * Runs the simulation loop on its own thread, so the step rate no longer depends on the frame rate and a slow frame
+ * never holds up physics. The thread sleeps until the next step is due.
+ */
+public class SimulationThread implements SimulationLoop.Runner, Runnable {
+
+    private SimulationLoop loop;
+    private Thread thread;
+    private volatile boolean running;
+
+    @Override
+    public void start(SimulationLoop loop) {
+        this.loop = loop;
+        running = true;
+        thread = new Thread(this, "Simulation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        long last = System.nanoTime();
+        while (running) {
+            long now = System.nanoTime();
+            loop.advance((now - last) / 1000000000.0f);
+            last = now;
+
+            long wait = (long) (loop.timeToNextStep() * 1000000000L);
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
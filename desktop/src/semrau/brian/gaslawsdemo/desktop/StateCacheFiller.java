@@ -0,0 +1,70 @@
+package semrau.brian.gaslawsdemo.desktop;
+
+import com.badlogic.gdx.math.MathUtils;
+import semrau.brian.gaslawsdemo.sim.GasSimulation;
+import semrau.brian.gaslawsdemo.sim.ParticleEngine;
+import semrau.brian.gaslawsdemo.sim.StateCache;
+
+/**
+ * Equilibrates states the user is likely to jump to on a low priority thread and puts them into the state cache:
+ * the isotherm and isochore through STP, which the lock buttons move along.
+ * <p>
+ * The states are keyed by amount of gas rather than particle count, so they still get used after the governor
+ * changes particles per mol. Each state is seeded from one draw taken on the thread that made the filler.
+ */
+public class StateCacheFiller implements Runnable {
+
+    private static final float[] VOLUMES = {5, 10, 22.414f, 50, 100};
+    private static final float[] TEMPERATURES = {100, 273.15f, 500, 1000, 2000};
+    private static final float STP_VOLUME = 22.414f;
+    private static final float STP_TEMPERATURE = 273.15f;
+    private static final int STEPS = 300;
+
+    private final ParticleEngine.Factory engineFactory;
+    private final int particlesPerMole;
+    private final StateCache cache;
+    private long seed;
+
+    public StateCacheFiller(ParticleEngine.Factory engineFactory, int particlesPerMole, StateCache cache) {
+        this.engineFactory = engineFactory;
+        this.particlesPerMole = particlesPerMole;
+        this.cache = cache;
+        seed = MathUtils.random.nextLong();
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "State cache filler");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        for (float v : VOLUMES) {
+            fill(1, v, STP_TEMPERATURE);
+        }
+        for (float t : TEMPERATURES) {
+            fill(1, STP_VOLUME, t);
+        }
+    }
+
+    private void fill(float n, float v, float t) {
+        long key = StateCache.key(n, v, t);
+        if (cache.contains(key)) return;
+
+        GasSimulation sim = new GasSimulation(engineFactory, particlesPerMole, seed++);
+        try {
+            sim.setVolume(v);
+            sim.setTemperature(t);
+            sim.setMoles(n);
+            for (int i = 0; i < STEPS; i++) {
+                sim.step(1.0f / 60.0f);
+            }
+            cache.save(key, sim.getEngine(), sim.getWallSize());
+        } finally {
+            sim.dispose();
+        }
+    }
+
+}
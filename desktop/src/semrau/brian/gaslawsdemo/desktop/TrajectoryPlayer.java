@@ -0,0 +1,161 @@
+package semrau.brian.gaslawsdemo.desktop;
+
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import semrau.brian.gaslawsdemo.sim.SimulationLoop;
+import semrau.brian.gaslawsdemo.sim.Snapshot;
+import semrau.brian.gaslawsdemo.sim.SnapshotBuffer;
+import semrau.brian.gaslawsdemo.sim.SpeedHistogram;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Replays a file written by {@link TrajectoryRecorder} in place of the simulation, at the rate it was recorded and
+ * looping at the end.
+ * <p>
+ * The file is memory-mapped, so only the pages actually played are read. Seeking decodes forward from the keyframe
+ * before the target, which is at most {@link TrajectoryRecorder#KEYFRAME_INTERVAL} steps of work. Files have to
+ * stay below 2 GB to fit a single mapping.
+ */
+public class TrajectoryPlayer implements SimulationLoop.Playback, Runnable {
+
+    private final MappedByteBuffer file;
+    private final float stepTime;
+    private final int keyframeInterval;
+    private final int stepCount;
+    private final long[] offsets;
+
+    private final FrameDecoder decoder = new FrameDecoder();
+    private int decoded = -1;
+
+    private SimulationLoop loop;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile int step;
+    private volatile int seekTo = -1;
+
+    public TrajectoryPlayer(String path) {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new GdxRuntimeException("Trajectory file is too large to map: " + path);
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't open trajectory file " + path, e);
+        }
+        file.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (file.limit() < TrajectoryRecorder.HEADER_SIZE + TrajectoryRecorder.FOOTER_SIZE
+                || file.getInt(0) != TrajectoryRecorder.MAGIC
+                || file.getInt(file.limit() - 4) != TrajectoryRecorder.MAGIC)
+            throw new GdxRuntimeException("Not a complete trajectory file: " + path);
+        if (file.getInt(4) != TrajectoryRecorder.VERSION)
+            throw new GdxRuntimeException("Unsupported trajectory version " + file.getInt(4) + ": " + path);
+        stepTime = file.getFloat(8);
+        keyframeInterval = file.getInt(12);
+
+        int footer = file.limit() - TrajectoryRecorder.FOOTER_SIZE;
+        stepCount = file.getInt(footer);
+        int index = (int) file.getLong(footer + 4);
+        offsets = new long[stepCount];
+        for (int i = 0; i < stepCount; i++) {
+            offsets[i] = file.getLong(index + i * 8);
+        }
+    }
+
+    public float getStepTime() {
+        return stepTime;
+    }
+
+    @Override
+    public int getStepCount() {
+        return stepCount;
+    }
+
+    @Override
+    public int getStep() {
+        return step;
+    }
+
+    @Override
+    public void seek(int step) {
+        seekTo = Math.max(0, Math.min(step, stepCount - 1));
+    }
+
+    /**
+     * Decodes a step into the snapshot, binning its speeds into the histogram on the way.
+     */
+    public void read(int step, Snapshot snapshot, SpeedHistogram speeds) {
+        // Carry on from the last decoded step if that is past the keyframe
+        int keyframe = step - step % keyframeInterval;
+        int from = decoded >= keyframe && decoded < step ? decoded + 1 : keyframe;
+        for (int i = from; i < step; i++) {
+            decode(i, null, null);
+        }
+        decode(step, snapshot, speeds);
+    }
+
+    private void decode(int step, Snapshot snapshot, SpeedHistogram speeds) {
+        file.position((int) offsets[step]);
+        decoder.decode(file, snapshot, speeds);
+        decoded = step;
+    }
+
+    @Override
+    public void start(SimulationLoop loop) {
+        this.loop = loop;
+        running = true;
+        thread = new Thread(this, "Playback");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        if (stepCount == 0) return;
+        SnapshotBuffer snapshots = loop.getSnapshots();
+        long stepNanos = (long) (stepTime * 1000000000L);
+        long next = System.nanoTime();
+        while (running) {
+            int target = seekTo;
+            if (target >= 0) {
+                seekTo = -1;
+                step = target;
+            }
+
+            Snapshot back = snapshots.getBack();
+            read(step, back, loop.getSpeeds());
+            back.stamp = next;
+            snapshots.publish();
+            step = (step + 1) % stepCount;
+
+            next += stepNanos;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            } else {
+                // Fell behind, don't try to catch up
+                next = System.nanoTime();
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+package semrau.brian.gaslawsdemo.desktop;
+
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import semrau.brian.gaslawsdemo.sim.SimulationLoop;
+import semrau.brian.gaslawsdemo.sim.Snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes every step of a run to a compact binary file that {@link TrajectoryPlayer} can replay.
+ * <p>
+ * Each step is a {@link FrameEncoder} frame, a byte or two per particle coordinate. Every
+ * {@link #KEYFRAME_INTERVAL}th step is a keyframe, so playback can seek without decoding the whole run.
+ * <p>
+ * Layout, little endian:
+ * <pre>
+ * header: magic, version, step time, keyframe interval
+ * step:   frame
+ * footer: offset of every step, step count, offset of those offsets, magic
+ * </pre>
+ */
+public class TrajectoryRecorder implements SimulationLoop.Recorder {
+
+    static final int MAGIC = 0x52544c47; // "GLTR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int FOOTER_SIZE = 16;
+    static final int KEYFRAME_INTERVAL = 60;
+
+    private final FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+    private long written;
+
+    private long[] offsets = new long[1024];
+    private int steps;
+
+    private final FrameEncoder encoder = new FrameEncoder();
+
+    public TrajectoryRecorder(String path, float stepTime) {
+        try {
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't open trajectory file " + path, e);
+        }
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putFloat(stepTime);
+        buffer.putInt(KEYFRAME_INTERVAL);
+    }
+
+    @Override
+    public void record(Snapshot snapshot) {
+        ensureRoom(FrameEncoder.maxSize(snapshot.count));
+        if (steps == offsets.length) {
+            offsets = Arrays.copyOf(offsets, steps * 2);
+        }
+        offsets[steps] = written + buffer.position();
+        encoder.encode(snapshot, steps % KEYFRAME_INTERVAL == 0, buffer);
+        steps++;
+    }
+
+    private void ensureRoom(int bytes) {
+        if (buffer.remaining() >= bytes) return;
+        flush();
+        if (buffer.capacity() < bytes) {
+            buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't write trajectory", e);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void dispose() {
+        long index = written + buffer.position();
+        for (int i = 0; i < steps; i++) {
+            ensureRoom(8);
+            buffer.putLong(offsets[i]);
+        }
+        ensureRoom(FOOTER_SIZE);
+        buffer.putInt(steps);
+        buffer.putLong(index);
+        buffer.putInt(MAGIC);
+        flush();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't close trajectory file", e);
+        }
+    }
+
+}